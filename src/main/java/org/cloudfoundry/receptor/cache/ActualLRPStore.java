@@ -0,0 +1,950 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.cloudfoundry.receptor.commands.ActualLRPResponse;
+import org.cloudfoundry.receptor.support.ModificationTag;
+import org.cloudfoundry.receptor.support.Port;
+import org.springframework.util.Assert;
+
+/**
+ * Compact store of actual LRPs, keyed like the Receptor by process guid, index and
+ * evacuation. Instead of one {@link ActualLRPResponse} per instance, with its own
+ * strings, ports and modification tag, the fields are kept in parallel arrays: the
+ * repeated strings, such as process guid, domain and cell, as codes of a shared
+ * dictionary, the state as a byte, instance guids as two longs when they are UUIDs,
+ * and the ports as a single int array.
+ * <p>
+ * The instances are also indexed by process guid, domain, cell, state and evacuation,
+ * and by the combinations of domain and cell with state. Each index links the slots
+ * having the same value into a list, so that a query takes time proportional to the
+ * number of results, without any object per indexed instance.
+ * <p>
+ * Lookups return read-only views that implement the getters of
+ * {@link ActualLRPResponse} by reading the arrays. A view follows updates of its
+ * instance, and fails with an {@link IllegalStateException} once the instance has
+ * been removed. Use {@link #copy(ActualLRPResponse)} to detach a view from the store.
+ * All methods synchronize on the store, so synchronizing on it makes a lookup and the
+ * copy of its results atomic.
+ */
+public class ActualLRPStore {
+
+	private static final ActualLRPResponse.State[] STATES = ActualLRPResponse.State.values();
+
+	private static final byte NO_STATE = -1;
+
+	private static final byte EVACUATING = 1;
+
+	private static final byte HAS_MODIFICATION_TAG = 2;
+
+	private static final byte UUID_INSTANCE_GUID = 4;
+
+	private static final int NO_SLOT = -1;
+
+	private static final int NO_KEY = -1;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final int BY_PROCESS_GUID = 0;
+
+	private static final int BY_DOMAIN = 1;
+
+	private static final int BY_CELL = 2;
+
+	private static final int BY_STATE = 3;
+
+	private static final int BY_DOMAIN_AND_STATE = 4;
+
+	private static final int BY_CELL_AND_STATE = 5;
+
+	private static final int BY_EVACUATING = 6;
+
+	private final StringDictionary strings;
+
+	private final SlotMap slots;
+
+	private final SlotIndex[] slotIndexes;
+
+	private int[] processGuids = new int[INITIAL_CAPACITY];
+
+	private int[] domains = new int[INITIAL_CAPACITY];
+
+	private int[] cellIds = new int[INITIAL_CAPACITY];
+
+	private int[] addresses = new int[INITIAL_CAPACITY];
+
+	private int[] placementErrors = new int[INITIAL_CAPACITY];
+
+	private int[] crashReasons = new int[INITIAL_CAPACITY];
+
+	private int[] epochs = new int[INITIAL_CAPACITY];
+
+	private long[] instanceGuidsHigh = new long[INITIAL_CAPACITY];
+
+	private long[] instanceGuidsLow = new long[INITIAL_CAPACITY];
+
+	/**
+	 * Instance guids that are not in the canonical form of a UUID.
+	 */
+	private String[] instanceGuids = new String[INITIAL_CAPACITY];
+
+	private int[] indexes = new int[INITIAL_CAPACITY];
+
+	private int[] crashCounts = new int[INITIAL_CAPACITY];
+
+	private int[] modificationIndexes = new int[INITIAL_CAPACITY];
+
+	private long[] sinces = new long[INITIAL_CAPACITY];
+
+	private byte[] states = new byte[INITIAL_CAPACITY];
+
+	private byte[] flags = new byte[INITIAL_CAPACITY];
+
+	/**
+	 * Container and host port pairs.
+	 */
+	private int[][] ports = new int[INITIAL_CAPACITY][];
+
+	/**
+	 * Incremented when a slot is freed, to detect views of removed instances.
+	 */
+	private int[] generations = new int[INITIAL_CAPACITY];
+
+	private boolean[] occupied = new boolean[INITIAL_CAPACITY];
+
+	private int[] freeSlots = new int[INITIAL_CAPACITY];
+
+	private int freeCount;
+
+	private int highWaterMark;
+
+	private int size;
+
+	public ActualLRPStore() {
+		this.strings = new StringDictionary();
+		this.slots = new SlotMap();
+		this.slotIndexes = new SlotIndex[BY_EVACUATING + 1];
+		for (int i = 0; i < slotIndexes.length; i++) {
+			slotIndexes[i] = new SlotIndex(INITIAL_CAPACITY);
+		}
+	}
+
+	/**
+	 * Create a store holding the same actual LRPs as the given store, independent of it.
+	 *
+	 * @param other the store to copy
+	 */
+	public ActualLRPStore(ActualLRPStore other) {
+		synchronized (other) {
+			this.strings = new StringDictionary(other.strings);
+			this.slots = new SlotMap(other.slots);
+			this.slotIndexes = new SlotIndex[other.slotIndexes.length];
+			for (int i = 0; i < slotIndexes.length; i++) {
+				slotIndexes[i] = new SlotIndex(other.slotIndexes[i]);
+			}
+			this.processGuids = other.processGuids.clone();
+			this.domains = other.domains.clone();
+			this.cellIds = other.cellIds.clone();
+			this.addresses = other.addresses.clone();
+			this.placementErrors = other.placementErrors.clone();
+			this.crashReasons = other.crashReasons.clone();
+			this.epochs = other.epochs.clone();
+			this.instanceGuidsHigh = other.instanceGuidsHigh.clone();
+			this.instanceGuidsLow = other.instanceGuidsLow.clone();
+			this.instanceGuids = other.instanceGuids.clone();
+			this.indexes = other.indexes.clone();
+			this.crashCounts = other.crashCounts.clone();
+			this.modificationIndexes = other.modificationIndexes.clone();
+			this.sinces = other.sinces.clone();
+			this.states = other.states.clone();
+			this.flags = other.flags.clone();
+			// packed ports are never modified in place, so they can be shared
+			this.ports = other.ports.clone();
+			this.generations = other.generations.clone();
+			this.occupied = other.occupied.clone();
+			this.freeSlots = other.freeSlots.clone();
+			this.freeCount = other.freeCount;
+			this.highWaterMark = other.highWaterMark;
+			this.size = other.size;
+		}
+	}
+
+	/**
+	 * Add the actual LRP, or replace the one with the same process guid, index and
+	 * evacuation.
+	 *
+	 * @return a view of the stored actual LRP
+	 * @throws IllegalArgumentException if the actual LRP has no process guid
+	 */
+	public synchronized ActualLRPResponse put(ActualLRPResponse actualLRP) {
+		Assert.notNull(actualLRP.getProcessGuid(), "The process guid of the actual LRP is required");
+		int slot = find(actualLRP.getProcessGuid(), actualLRP.getIndex(), actualLRP.isEvacuating());
+		if (slot == NO_SLOT) {
+			slot = allocate();
+			write(slot, actualLRP);
+			slots.put(key(processGuids[slot], actualLRP.getIndex(), actualLRP.isEvacuating()), slot);
+			link(slot);
+			occupied[slot] = true;
+			size++;
+		}
+		else {
+			unlink(slot);
+			int[] previous = codes(slot);
+			write(slot, actualLRP);
+			link(slot);
+			for (int code : previous) {
+				strings.release(code);
+			}
+		}
+		return new View(slot, generations[slot]);
+	}
+
+	/**
+	 * @return a view of the actual LRP, or {@code null} if there is none
+	 */
+	public synchronized ActualLRPResponse get(String processGuid, int index, boolean evacuating) {
+		int slot = find(processGuid, index, evacuating);
+		return (slot != NO_SLOT ? new View(slot, generations[slot]) : null);
+	}
+
+	/**
+	 * @return whether there was an actual LRP to remove
+	 */
+	public synchronized boolean remove(String processGuid, int index, boolean evacuating) {
+		int slot = find(processGuid, index, evacuating);
+		if (slot == NO_SLOT) {
+			return false;
+		}
+		slots.remove(key(processGuids[slot], index, evacuating));
+		unlink(slot);
+		for (int code : codes(slot)) {
+			strings.release(code);
+		}
+		instanceGuids[slot] = null;
+		ports[slot] = null;
+		occupied[slot] = false;
+		generations[slot]++;
+		if (freeCount == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+		}
+		freeSlots[freeCount++] = slot;
+		size--;
+		return true;
+	}
+
+	/**
+	 * @return views of all stored actual LRPs
+	 */
+	public synchronized List<ActualLRPResponse> getAll() {
+		List<ActualLRPResponse> actualLRPs = new ArrayList<ActualLRPResponse>(size);
+		for (int slot = 0; slot < highWaterMark; slot++) {
+			if (occupied[slot]) {
+				actualLRPs.add(new View(slot, generations[slot]));
+			}
+		}
+		return actualLRPs;
+	}
+
+	/**
+	 * @return views of all instances of the given process, including evacuating ones
+	 */
+	public synchronized List<ActualLRPResponse> getByProcessGuid(String processGuid) {
+		return collect(BY_PROCESS_GUID, strings.lookup(processGuid));
+	}
+
+	/**
+	 * @param state the state, such as {@code CRASHED}, or {@code null} for any state
+	 * @return views of the actual LRPs of the domain
+	 */
+	public synchronized List<ActualLRPResponse> getByDomain(String domain, String state) {
+		int code = strings.lookup(domain);
+		if (state == null) {
+			return collect(BY_DOMAIN, code);
+		}
+		return collect(BY_DOMAIN_AND_STATE, compositeKey(code, stateOrdinal(state)));
+	}
+
+	/**
+	 * @param state the state, such as {@code RUNNING}, or {@code null} for any state
+	 * @return views of the actual LRPs on the cell
+	 */
+	public synchronized List<ActualLRPResponse> getByCell(String cellId, String state) {
+		int code = strings.lookup(cellId);
+		if (state == null) {
+			return collect(BY_CELL, code);
+		}
+		return collect(BY_CELL_AND_STATE, compositeKey(code, stateOrdinal(state)));
+	}
+
+	/**
+	 * @return views of the actual LRPs in the given state
+	 */
+	public synchronized List<ActualLRPResponse> getByState(String state) {
+		return collect(BY_STATE, stateOrdinal(state));
+	}
+
+	/**
+	 * @return views of the evacuating actual LRPs
+	 */
+	public synchronized List<ActualLRPResponse> getEvacuating() {
+		return collect(BY_EVACUATING, 0);
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized void clear() {
+		for (int slot = 0; slot < highWaterMark; slot++) {
+			if (occupied[slot]) {
+				generations[slot]++;
+				occupied[slot] = false;
+				instanceGuids[slot] = null;
+				ports[slot] = null;
+			}
+		}
+		strings.clear();
+		slots.clear();
+		for (SlotIndex slotIndex : slotIndexes) {
+			slotIndex.clear();
+		}
+		freeCount = 0;
+		highWaterMark = 0;
+		size = 0;
+	}
+
+	/**
+	 * @return a copy of the actual LRP that does not depend on the store
+	 */
+	public static ActualLRPResponse copy(ActualLRPResponse actualLRP) {
+		ActualLRPResponse copy = new ActualLRPResponse();
+		copy.setProcessGuid(actualLRP.getProcessGuid());
+		copy.setInstanceGuid(actualLRP.getInstanceGuid());
+		copy.setCellId(actualLRP.getCellId());
+		copy.setDomain(actualLRP.getDomain());
+		copy.setIndex(actualLRP.getIndex());
+		if (actualLRP.getState() != null) {
+			copy.setState(actualLRP.getState());
+		}
+		copy.setAddress(actualLRP.getAddress());
+		copy.setPorts(actualLRP.getPorts());
+		copy.setPlacementError(actualLRP.getPlacementError());
+		copy.setCrashCount(actualLRP.getCrashCount());
+		copy.setCrashReason(actualLRP.getCrashReason());
+		copy.setSince(actualLRP.getSince());
+		copy.setEvacuating(actualLRP.isEvacuating());
+		copy.setModificationTag(actualLRP.getModificationTag());
+		return copy;
+	}
+
+	private int find(String processGuid, int index, boolean evacuating) {
+		int code = strings.lookup(processGuid);
+		return (code != StringDictionary.NULL_CODE ? slots.get(key(code, index, evacuating)) : NO_SLOT);
+	}
+
+	private static long key(int processGuid, int index, boolean evacuating) {
+		return ((long) processGuid << 32) | (((long) index << 1) & 0xffffffffL) | (evacuating ? 1 : 0);
+	}
+
+	private List<ActualLRPResponse> collect(int index, int key) {
+		List<ActualLRPResponse> actualLRPs = new ArrayList<ActualLRPResponse>();
+		if (key == NO_KEY) {
+			return actualLRPs;
+		}
+		SlotIndex slotIndex = slotIndexes[index];
+		for (int slot = slotIndex.first(key); slot != NO_SLOT; slot = slotIndex.next(slot)) {
+			actualLRPs.add(new View(slot, generations[slot]));
+		}
+		return actualLRPs;
+	}
+
+	private void link(int slot) {
+		for (int i = 0; i < slotIndexes.length; i++) {
+			slotIndexes[i].link(indexKey(i, slot), slot);
+		}
+	}
+
+	/**
+	 * Unlink the slot from the indexes, which must be done before its fields change.
+	 */
+	private void unlink(int slot) {
+		for (int i = 0; i < slotIndexes.length; i++) {
+			slotIndexes[i].unlink(indexKey(i, slot), slot);
+		}
+	}
+
+	/**
+	 * @return the key of the slot in the given index, or {@link #NO_KEY} if the slot
+	 * has no value to index
+	 */
+	private int indexKey(int index, int slot) {
+		int state = states[slot];
+		switch (index) {
+		case BY_PROCESS_GUID:
+			return processGuids[slot];
+		case BY_DOMAIN:
+			return domains[slot];
+		case BY_CELL:
+			return cellIds[slot];
+		case BY_STATE:
+			return state;
+		case BY_DOMAIN_AND_STATE:
+			return compositeKey(domains[slot], state);
+		case BY_CELL_AND_STATE:
+			return compositeKey(cellIds[slot], state);
+		default:
+			return ((flags[slot] & EVACUATING) != 0 ? 0 : NO_KEY);
+		}
+	}
+
+	private static int compositeKey(int code, int state) {
+		return (code != StringDictionary.NULL_CODE && state != NO_STATE ? code * STATES.length + state : NO_KEY);
+	}
+
+	private static int stateOrdinal(String state) {
+		for (ActualLRPResponse.State candidate : STATES) {
+			if (candidate.toString().equals(state)) {
+				return candidate.ordinal();
+			}
+		}
+		return NO_KEY;
+	}
+
+	private int[] codes(int slot) {
+		return new int[] { processGuids[slot], domains[slot], cellIds[slot], addresses[slot], placementErrors[slot],
+				crashReasons[slot], epochs[slot] };
+	}
+
+	/**
+	 * Write the fields of the actual LRP to the slot, acquiring new dictionary codes.
+	 * Codes previously held by the slot must be released by the caller afterwards.
+	 */
+	private void write(int slot, ActualLRPResponse actualLRP) {
+		processGuids[slot] = strings.acquire(actualLRP.getProcessGuid());
+		domains[slot] = strings.acquire(actualLRP.getDomain());
+		cellIds[slot] = strings.acquire(actualLRP.getCellId());
+		addresses[slot] = strings.acquire(actualLRP.getAddress());
+		placementErrors[slot] = strings.acquire(actualLRP.getPlacementError());
+		crashReasons[slot] = strings.acquire(actualLRP.getCrashReason());
+		indexes[slot] = actualLRP.getIndex();
+		crashCounts[slot] = actualLRP.getCrashCount();
+		sinces[slot] = actualLRP.getSince();
+		String state = actualLRP.getState();
+		states[slot] = (state != null ? (byte) ActualLRPResponse.State.valueOf(state).ordinal() : NO_STATE);
+		Port[] actualPorts = actualLRP.getPorts();
+		int[] packedPorts = null;
+		if (actualPorts != null) {
+			packedPorts = new int[actualPorts.length * 2];
+			for (int i = 0; i < actualPorts.length; i++) {
+				packedPorts[i * 2] = actualPorts[i].getContainerPort();
+				packedPorts[i * 2 + 1] = actualPorts[i].getHostPort();
+			}
+		}
+		ports[slot] = packedPorts;
+		byte slotFlags = (actualLRP.isEvacuating() ? EVACUATING : 0);
+		if (writeInstanceGuid(slot, actualLRP.getInstanceGuid())) {
+			slotFlags |= UUID_INSTANCE_GUID;
+		}
+		ModificationTag tag = actualLRP.getModificationTag();
+		if (tag != null) {
+			slotFlags |= HAS_MODIFICATION_TAG;
+			epochs[slot] = strings.acquire(tag.getEpoch());
+			modificationIndexes[slot] = tag.getIndex();
+		}
+		else {
+			epochs[slot] = StringDictionary.NULL_CODE;
+		}
+		flags[slot] = slotFlags;
+	}
+
+	/**
+	 * @return whether the instance guid is a UUID stored as two longs
+	 */
+	private boolean writeInstanceGuid(int slot, String instanceGuid) {
+		instanceGuids[slot] = null;
+		if (instanceGuid == null) {
+			return false;
+		}
+		try {
+			UUID uuid = UUID.fromString(instanceGuid);
+			if (uuid.toString().equals(instanceGuid)) {
+				instanceGuidsHigh[slot] = uuid.getMostSignificantBits();
+				instanceGuidsLow[slot] = uuid.getLeastSignificantBits();
+				return true;
+			}
+		}
+		catch (IllegalArgumentException e) {
+			// not a UUID, stored as is
+		}
+		instanceGuids[slot] = instanceGuid;
+		return false;
+	}
+
+	private String readInstanceGuid(int slot) {
+		if ((flags[slot] & UUID_INSTANCE_GUID) != 0) {
+			return new UUID(instanceGuidsHigh[slot], instanceGuidsLow[slot]).toString();
+		}
+		return instanceGuids[slot];
+	}
+
+	private int allocate() {
+		if (freeCount > 0) {
+			return freeSlots[--freeCount];
+		}
+		if (highWaterMark == occupied.length) {
+			grow(highWaterMark * 2);
+		}
+		return highWaterMark++;
+	}
+
+	private void grow(int capacity) {
+		processGuids = Arrays.copyOf(processGuids, capacity);
+		domains = Arrays.copyOf(domains, capacity);
+		cellIds = Arrays.copyOf(cellIds, capacity);
+		addresses = Arrays.copyOf(addresses, capacity);
+		placementErrors = Arrays.copyOf(placementErrors, capacity);
+		crashReasons = Arrays.copyOf(crashReasons, capacity);
+		epochs = Arrays.copyOf(epochs, capacity);
+		instanceGuidsHigh = Arrays.copyOf(instanceGuidsHigh, capacity);
+		instanceGuidsLow = Arrays.copyOf(instanceGuidsLow, capacity);
+		instanceGuids = Arrays.copyOf(instanceGuids, capacity);
+		indexes = Arrays.copyOf(indexes, capacity);
+		crashCounts = Arrays.copyOf(crashCounts, capacity);
+		modificationIndexes = Arrays.copyOf(modificationIndexes, capacity);
+		sinces = Arrays.copyOf(sinces, capacity);
+		states = Arrays.copyOf(states, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+		ports = Arrays.copyOf(ports, capacity);
+		generations = Arrays.copyOf(generations, capacity);
+		occupied = Arrays.copyOf(occupied, capacity);
+		for (SlotIndex slotIndex : slotIndexes) {
+			slotIndex.grow(capacity);
+		}
+	}
+
+	/**
+	 * Read-only view of the actual LRP in a slot.
+	 */
+	private class View extends ActualLRPResponse {
+
+		private final int slot;
+
+		private final int generation;
+
+		private View(int slot, int generation) {
+			this.slot = slot;
+			this.generation = generation;
+		}
+
+		private void checkValid() {
+			if (generations[slot] != generation) {
+				throw new IllegalStateException("The actual LRP has been removed from the store");
+			}
+		}
+
+		@Override
+		public String getProcessGuid() {
+			synchronized (ActualLRPStore.this) {
+				checkValid();
+				return strings.get(processGuids[slot]);
+			}
+		}
+
+		@Override
+		public String getInstanceGuid() {
+			synchronized (ActualLRPStore.this) {
+				checkValid();
+				return readInstanceGuid(slot);
+			}
+		}
+
+		@Override
+		public String getCellId() {
+			synchronized (ActualLRPStore.this) {
+				checkValid();
+				return strings.get(cellIds[slot]);
+			}
+		}
+
+		@Override
+		public String getDomain() {
+			synchronized (ActualLRPStore.this) {
+				checkValid();
+				return strings.get(domains[slot]);
+			}
+		}
+
+		@Override
+		public int getIndex() {
+			synchronized (ActualLRPStore.this) {
+				checkValid();
+				return indexes[slot];
+			}
+		}
+
+		@Override
+		public String getState() {
+			synchronized (ActualLRPStore.this) {
+				checkValid();
+				byte state = states[slot];
+				return (state != NO_STATE ? STATES[state].toString() : null);
+			}
+		}
+
+		@Override
+		public String getAddress() {
+			synchronized (ActualLRPStore.this) {
+				checkValid();
+				return strings.get(addresses[slot]);
+			}
+		}
+
+		@Override
+		public Port[] getPorts() {
+			synchronized (ActualLRPStore.this) {
+				checkValid();
+				int[] packedPorts = ports[slot];
+				if (packedPorts == null) {
+					return null;
+				}
+				Port[] actualPorts = new Port[packedPorts.length / 2];
+				for (int i = 0; i < actualPorts.length; i++) {
+					actualPorts[i] = new Port();
+					actualPorts[i].setContainerPort(packedPorts[i * 2]);
+					actualPorts[i].setHostPort(packedPorts[i * 2 + 1]);
+				}
+				return actualPorts;
+			}
+		}
+
+		@Override
+		public String getPlacementError() {
+			synchronized (ActualLRPStore.this) {
+				checkValid();
+				return strings.get(placementErrors[slot]);
+			}
+		}
+
+		@Override
+		public int getCrashCount() {
+			synchronized (ActualLRPStore.this) {
+				checkValid();
+				return crashCounts[slot];
+			}
+		}
+
+		@Override
+		public String getCrashReason() {
+			synchronized (ActualLRPStore.this) {
+				checkValid();
+				return strings.get(crashReasons[slot]);
+			}
+		}
+
+		@Override
+		public long getSince() {
+			synchronized (ActualLRPStore.this) {
+				checkValid();
+				return sinces[slot];
+			}
+		}
+
+		@Override
+		public boolean isEvacuating() {
+			synchronized (ActualLRPStore.this) {
+				checkValid();
+				return (flags[slot] & EVACUATING) != 0;
+			}
+		}
+
+		@Override
+		public ModificationTag getModificationTag() {
+			synchronized (ActualLRPStore.this) {
+				checkValid();
+				if ((flags[slot] & HAS_MODIFICATION_TAG) == 0) {
+					return null;
+				}
+				ModificationTag tag = new ModificationTag();
+				tag.setEpoch(strings.get(epochs[slot]));
+				tag.setIndex(modificationIndexes[slot]);
+				return tag;
+			}
+		}
+
+		@Override
+		public void setProcessGuid(String processGuid) {
+			throw new UnsupportedOperationException("Views of stored actual LRPs are read-only");
+		}
+
+		@Override
+		public void setInstanceGuid(String instanceGuid) {
+			throw new UnsupportedOperationException("Views of stored actual LRPs are read-only");
+		}
+
+		@Override
+		public void setCellId(String cellId) {
+			throw new UnsupportedOperationException("Views of stored actual LRPs are read-only");
+		}
+
+		@Override
+		public void setDomain(String domain) {
+			throw new UnsupportedOperationException("Views of stored actual LRPs are read-only");
+		}
+
+		@Override
+		public void setIndex(int index) {
+			throw new UnsupportedOperationException("Views of stored actual LRPs are read-only");
+		}
+
+		@Override
+		public void setState(String state) {
+			throw new UnsupportedOperationException("Views of stored actual LRPs are read-only");
+		}
+
+		@Override
+		public void setAddress(String address) {
+			throw new UnsupportedOperationException("Views of stored actual LRPs are read-only");
+		}
+
+		@Override
+		public void setPorts(Port[] ports) {
+			throw new UnsupportedOperationException("Views of stored actual LRPs are read-only");
+		}
+
+		@Override
+		public void setPlacementError(String placementError) {
+			throw new UnsupportedOperationException("Views of stored actual LRPs are read-only");
+		}
+
+		@Override
+		public void setCrashCount(int crashCount) {
+			throw new UnsupportedOperationException("Views of stored actual LRPs are read-only");
+		}
+
+		@Override
+		public void setCrashReason(String crashReason) {
+			throw new UnsupportedOperationException("Views of stored actual LRPs are read-only");
+		}
+
+		@Override
+		public void setSince(long since) {
+			throw new UnsupportedOperationException("Views of stored actual LRPs are read-only");
+		}
+
+		@Override
+		public void setEvacuating(boolean evacuating) {
+			throw new UnsupportedOperationException("Views of stored actual LRPs are read-only");
+		}
+
+		@Override
+		public void setModificationTag(ModificationTag modificationTag) {
+			throw new UnsupportedOperationException("Views of stored actual LRPs are read-only");
+		}
+
+		@Override
+		public String toString() {
+			return copy(this).toString();
+		}
+	}
+
+	/**
+	 * Open addressing hash map from the key of an actual LRP to its slot.
+	 */
+	private static class SlotMap {
+
+		private long[] keys = new long[INITIAL_CAPACITY * 2];
+
+		private int[] values = new int[INITIAL_CAPACITY * 2];
+
+		private boolean[] used = new boolean[INITIAL_CAPACITY * 2];
+
+		private int count;
+
+		SlotMap() {
+		}
+
+		SlotMap(SlotMap other) {
+			this.keys = other.keys.clone();
+			this.values = other.values.clone();
+			this.used = other.used.clone();
+			this.count = other.count;
+		}
+
+		int get(long key) {
+			int mask = keys.length - 1;
+			for (int i = hash(key) & mask; used[i]; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					return values[i];
+				}
+			}
+			return NO_SLOT;
+		}
+
+		void put(long key, int value) {
+			if ((count + 1) * 2 > keys.length) {
+				resize(keys.length * 2);
+			}
+			int mask = keys.length - 1;
+			int i = hash(key) & mask;
+			while (used[i]) {
+				if (keys[i] == key) {
+					values[i] = value;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			values[i] = value;
+			used[i] = true;
+			count++;
+		}
+
+		void remove(long key) {
+			int mask = keys.length - 1;
+			int i = hash(key) & mask;
+			while (used[i] && keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			if (!used[i]) {
+				return;
+			}
+			used[i] = false;
+			count--;
+			// shift back the entries that follow so that probe sequences stay unbroken
+			for (int j = (i + 1) & mask; used[j]; j = (j + 1) & mask) {
+				int home = hash(keys[j]) & mask;
+				if (((j - home) & mask) >= ((j - i) & mask)) {
+					keys[i] = keys[j];
+					values[i] = values[j];
+					used[i] = true;
+					used[j] = false;
+					i = j;
+				}
+			}
+		}
+
+		void clear() {
+			Arrays.fill(used, false);
+			count = 0;
+		}
+
+		private void resize(int capacity) {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			boolean[] oldUsed = used;
+			keys = new long[capacity];
+			values = new int[capacity];
+			used = new boolean[capacity];
+			count = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldUsed[i]) {
+					put(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+
+		private static int hash(long key) {
+			long h = key * 0x9e3779b97f4a7c15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+
+	/**
+	 * Index of the slots by an int key, such as a dictionary code, linking the slots
+	 * with the same key into a doubly linked list.
+	 */
+	private static class SlotIndex {
+
+		private int[] heads = newSlots(INITIAL_CAPACITY);
+
+		private int[] next;
+
+		private int[] previous;
+
+		SlotIndex(int capacity) {
+			this.next = new int[capacity];
+			this.previous = new int[capacity];
+		}
+
+		SlotIndex(SlotIndex other) {
+			this.heads = other.heads.clone();
+			this.next = other.next.clone();
+			this.previous = other.previous.clone();
+		}
+
+		int first(int key) {
+			return (key < heads.length ? heads[key] : NO_SLOT);
+		}
+
+		int next(int slot) {
+			return next[slot];
+		}
+
+		void link(int key, int slot) {
+			if (key == NO_KEY) {
+				return;
+			}
+			if (key >= heads.length) {
+				int length = heads.length;
+				heads = Arrays.copyOf(heads, Math.max(key + 1, length * 2));
+				Arrays.fill(heads, length, heads.length, NO_SLOT);
+			}
+			int head = heads[key];
+			next[slot] = head;
+			previous[slot] = NO_SLOT;
+			if (head != NO_SLOT) {
+				previous[head] = slot;
+			}
+			heads[key] = slot;
+		}
+
+		void unlink(int key, int slot) {
+			if (key == NO_KEY) {
+				return;
+			}
+			if (previous[slot] != NO_SLOT) {
+				next[previous[slot]] = next[slot];
+			}
+			else {
+				heads[key] = next[slot];
+			}
+			if (next[slot] != NO_SLOT) {
+				previous[next[slot]] = previous[slot];
+			}
+		}
+
+		void grow(int capacity) {
+			next = Arrays.copyOf(next, capacity);
+			previous = Arrays.copyOf(previous, capacity);
+		}
+
+		void clear() {
+			Arrays.fill(heads, NO_SLOT);
+		}
+
+		private static int[] newSlots(int length) {
+			int[] slots = new int[length];
+			Arrays.fill(slots, NO_SLOT);
+			return slots;
+		}
+	}
+}
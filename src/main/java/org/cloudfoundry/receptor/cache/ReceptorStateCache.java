@@ -0,0 +1,550 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.receptor.client.ReceptorOperations;
+import org.cloudfoundry.receptor.commands.ActualLRPResponse;
+import org.cloudfoundry.receptor.commands.DesiredLRPResponse;
+import org.cloudfoundry.receptor.events.ActualLRPChangedEvent;
+import org.cloudfoundry.receptor.events.ActualLRPCreatedEvent;
+import org.cloudfoundry.receptor.events.ActualLRPRemovedEvent;
+import org.cloudfoundry.receptor.events.DesiredLRPChangedEvent;
+import org.cloudfoundry.receptor.events.DesiredLRPCreatedEvent;
+import org.cloudfoundry.receptor.events.DesiredLRPRemovedEvent;
+import org.cloudfoundry.receptor.events.DispatchMode;
+import org.cloudfoundry.receptor.events.EventGapListener;
+import org.cloudfoundry.receptor.events.EventListener;
+import org.cloudfoundry.receptor.events.ReceptorEvent;
+import org.cloudfoundry.receptor.support.ModificationTag;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Local materialized view of the desired and actual LRPs of a Receptor. On
+ * {@link #start()} the cache subscribes to events, lists all LRPs once, and from then
+ * on applies each event to its maps, so that reads are local lookups rather than
+ * requests to the Receptor. Events received while listing are buffered and applied
+ * afterwards. Actual LRP events that are older than the cached state, according to
+ * their modification tag, are ignored. When events may have been missed, as reported
+ * by an {@link EventGapListener} notification, all LRPs are listed again on a thread of
+ * the cache, so that the dispatching thread is not held up. A resync requested while
+ * listing is in progress lists all LRPs once more afterwards.
+ * <p>
+ * Actual LRPs are held in an {@link ActualLRPStore}, which also indexes them by process
+ * guid, domain, cell, state and evacuation. The indexes are updated along with each
+ * event, so that queries such as the running instances on a cell take time
+ * proportional to the number of results.
+ * <p>
+ * The cached state can be written to a file with {@link #writeSnapshot(File)} and
+ * restored on the next {@link #start(File)}, so that reads are served right away. The
+ * Receptor does not replay the events emitted since the snapshot was written, so a
+ * restored cache cannot catch up from the event stream: it serves the possibly stale
+ * snapshot while listing all LRPs again in the background, and is not
+ * {@linkplain #isSynced() synced} until that listing completes.
+ * <p>
+ * Individual lookups see the latest applied event; {@link #getSnapshot()} returns a
+ * consistent view of all LRPs at a single point in the event stream. The returned
+ * desired LRPs are shared and must not be modified; actual LRPs are returned as
+ * copies.
+ */
+public class ReceptorStateCache implements Closeable {
+
+	private static final Log logger = LogFactory.getLog(ReceptorStateCache.class);
+
+	static final int NO_EVENT_ID = -1;
+
+	private final ReceptorOperations receptor;
+
+	private final EventHandler eventHandler = new EventHandler();
+
+	/**
+	 * Guards updates to the maps and the buffer of events received while listing.
+	 */
+	private final Object lock = new Object();
+
+	private final List<ReceptorEvent<?>> bufferedEvents = new ArrayList<ReceptorEvent<?>>();
+
+	private volatile Map<String, DesiredLRPResponse> desiredLRPs = new ConcurrentHashMap<String, DesiredLRPResponse>();
+
+	private volatile ActualLRPStore actualLRPs = new ActualLRPStore();
+
+	private volatile int lastEventId = NO_EVENT_ID;
+
+	private boolean listing;
+
+	/**
+	 * Whether a resync was requested while listing, which may have missed its cause.
+	 */
+	private boolean resyncPending;
+
+	/**
+	 * Runs the resyncs triggered by gaps and restored snapshots. Holds at most one
+	 * waiting resync, since it covers any further gaps reported before it starts.
+	 */
+	private final ExecutorService resyncExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(1), resyncThreadFactory(), new ThreadPoolExecutor.DiscardPolicy());
+
+	private volatile boolean synced;
+
+	private volatile long resyncCount;
+
+	public ReceptorStateCache(ReceptorOperations receptor) {
+		Assert.notNull(receptor, "ReceptorOperations is required");
+		this.receptor = receptor;
+	}
+
+	private static CustomizableThreadFactory resyncThreadFactory() {
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("receptor-state-cache-resync-");
+		threadFactory.setDaemon(true);
+		return threadFactory;
+	}
+
+	/**
+	 * Subscribe to events and list all LRPs. Returns once the cache is populated.
+	 */
+	public void start() {
+		subscribe();
+		resync();
+	}
+
+	/**
+	 * Restore the state written to the given file by {@link #writeSnapshot(File)},
+	 * subscribe to events, and list all LRPs again in the background, since events
+	 * emitted after the snapshot was written are not replayed. Returns once the
+	 * snapshot is restored, and the cache becomes synced once the listing completes.
+	 * Falls back to {@link #start()} if the file does not exist or cannot be read.
+	 *
+	 * @param snapshotFile the snapshot file
+	 */
+	public void start(File snapshotFile) {
+		Snapshot snapshot = null;
+		if (snapshotFile.exists()) {
+			try {
+				snapshot = SnapshotFile.read(snapshotFile);
+			}
+			catch (IOException e) {
+				logger.warn("Failed to read snapshot " + snapshotFile + ", listing all LRPs instead.", e);
+			}
+		}
+		if (snapshot == null || snapshot.getLastEventId() == null) {
+			start();
+			return;
+		}
+		synchronized (lock) {
+			replaceState(snapshot.getDesiredLRPs().values(), new ActualLRPStore(snapshot.actualLRPs));
+			lastEventId = snapshot.getLastEventId();
+		}
+		subscribe();
+		resyncInBackground();
+	}
+
+	/**
+	 * Subscribe to gaps first, so that no gap in the events received is missed.
+	 */
+	private void subscribe() {
+		receptor.subscribeToEventGaps(eventHandler);
+		receptor.subscribeToEvents(eventHandler, null, DispatchMode.INLINE);
+	}
+
+	/**
+	 * Write the cached state, along with the id of the last event applied to it, to the
+	 * given file, replacing it if it exists.
+	 *
+	 * @param snapshotFile the snapshot file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void writeSnapshot(File snapshotFile) throws IOException {
+		Assert.state(synced, "The cache has not been populated");
+		SnapshotFile.write(snapshotFile, getSnapshot());
+	}
+
+	/**
+	 * Stop applying events and resyncing. The cached state remains readable.
+	 */
+	@Override
+	public void close() {
+		synced = false;
+		receptor.unsubscribe(eventHandler);
+		resyncExecutor.shutdownNow();
+	}
+
+	/**
+	 * List all LRPs again and replace the cached state with the result, applying any
+	 * events received in the meantime. If another resync is listing already, it lists
+	 * all LRPs once more when done, and this method returns right away.
+	 */
+	public void resync() {
+		synchronized (lock) {
+			if (listing) {
+				resyncPending = true;
+				return;
+			}
+			listing = true;
+			bufferedEvents.clear();
+		}
+		boolean again = true;
+		while (again) {
+			List<DesiredLRPResponse> desired = null;
+			List<ActualLRPResponse> actual = null;
+			try {
+				desired = receptor.getDesiredLRPs();
+				actual = receptor.getActualLRPs();
+			}
+			finally {
+				synchronized (lock) {
+					if (actual != null) {
+						replaceState(desired, store(actual));
+						this.synced = true;
+						this.resyncCount++;
+					}
+					for (ReceptorEvent<?> event : bufferedEvents) {
+						apply(event);
+					}
+					bufferedEvents.clear();
+					again = (actual != null && resyncPending);
+					resyncPending = false;
+					listing = again;
+				}
+			}
+		}
+	}
+
+	private void replaceState(Collection<DesiredLRPResponse> desired, ActualLRPStore actual) {
+		Map<String, DesiredLRPResponse> desiredMap = new ConcurrentHashMap<String, DesiredLRPResponse>();
+		for (DesiredLRPResponse desiredLRP : desired) {
+			desiredMap.put(desiredLRP.getProcessGuid(), desiredLRP);
+		}
+		this.desiredLRPs = desiredMap;
+		this.actualLRPs = actual;
+	}
+
+	static ActualLRPStore store(Collection<ActualLRPResponse> actual) {
+		ActualLRPStore store = new ActualLRPStore();
+		for (ActualLRPResponse actualLRP : actual) {
+			if (actualLRP.getProcessGuid() != null) {
+				store.put(actualLRP);
+			}
+		}
+		return store;
+	}
+
+	private void resyncInBackground() {
+		resyncExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					resync();
+				}
+				catch (RuntimeException e) {
+					logger.warn("Failed to list LRPs, the cached state may be stale.", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return whether all LRPs have been listed and events are being applied since
+	 */
+	public boolean isSynced() {
+		return synced;
+	}
+
+	/**
+	 * @return the number of times all LRPs have been listed
+	 */
+	public long getResyncCount() {
+		return resyncCount;
+	}
+
+	/**
+	 * @return the id of the last event applied to the cache, or {@code null} if none
+	 */
+	public Integer getLastEventId() {
+		int id = lastEventId;
+		return (id != NO_EVENT_ID ? id : null);
+	}
+
+	public DesiredLRPResponse getDesiredLRP(String processGuid) {
+		return desiredLRPs.get(processGuid);
+	}
+
+	public List<DesiredLRPResponse> getDesiredLRPs() {
+		return new ArrayList<DesiredLRPResponse>(desiredLRPs.values());
+	}
+
+	/**
+	 * @return the actual LRP with the given index, preferring the instance that is not
+	 * evacuating if both exist, or {@code null} if there is none
+	 */
+	public ActualLRPResponse getActualLRP(String processGuid, int index) {
+		ActualLRPStore actualLRPs = this.actualLRPs;
+		synchronized (actualLRPs) {
+			ActualLRPResponse actualLRP = actualLRPs.get(processGuid, index, false);
+			if (actualLRP == null) {
+				actualLRP = actualLRPs.get(processGuid, index, true);
+			}
+			return (actualLRP != null ? ActualLRPStore.copy(actualLRP) : null);
+		}
+	}
+
+	public List<ActualLRPResponse> getActualLRPs() {
+		ActualLRPStore actualLRPs = this.actualLRPs;
+		synchronized (actualLRPs) {
+			return copies(actualLRPs.getAll());
+		}
+	}
+
+	/**
+	 * @return all instances of the given process, including evacuating ones
+	 */
+	public List<ActualLRPResponse> getActualLRPsByProcessGuid(String processGuid) {
+		ActualLRPStore actualLRPs = this.actualLRPs;
+		synchronized (actualLRPs) {
+			return copies(actualLRPs.getByProcessGuid(processGuid));
+		}
+	}
+
+	public List<ActualLRPResponse> getActualLRPsByDomain(String domain) {
+		return getActualLRPsByDomain(domain, null);
+	}
+
+	/**
+	 * @param state the state, such as {@code CRASHED}, or {@code null} for any state
+	 */
+	public List<ActualLRPResponse> getActualLRPsByDomain(String domain, String state) {
+		ActualLRPStore actualLRPs = this.actualLRPs;
+		synchronized (actualLRPs) {
+			return copies(actualLRPs.getByDomain(domain, state));
+		}
+	}
+
+	public List<ActualLRPResponse> getActualLRPsByCell(String cellId) {
+		return getActualLRPsByCell(cellId, null);
+	}
+
+	/**
+	 * @param state the state, such as {@code RUNNING}, or {@code null} for any state
+	 */
+	public List<ActualLRPResponse> getActualLRPsByCell(String cellId, String state) {
+		ActualLRPStore actualLRPs = this.actualLRPs;
+		synchronized (actualLRPs) {
+			return copies(actualLRPs.getByCell(cellId, state));
+		}
+	}
+
+	public List<ActualLRPResponse> getActualLRPsByState(String state) {
+		ActualLRPStore actualLRPs = this.actualLRPs;
+		synchronized (actualLRPs) {
+			return copies(actualLRPs.getByState(state));
+		}
+	}
+
+	public List<ActualLRPResponse> getEvacuatingActualLRPs() {
+		ActualLRPStore actualLRPs = this.actualLRPs;
+		synchronized (actualLRPs) {
+			return copies(actualLRPs.getEvacuating());
+		}
+	}
+
+	/**
+	 * Copy views of the store, which must be locked so that none is removed meanwhile.
+	 */
+	private static List<ActualLRPResponse> copies(List<ActualLRPResponse> views) {
+		List<ActualLRPResponse> copies = new ArrayList<ActualLRPResponse>(views.size());
+		for (ActualLRPResponse view : views) {
+			copies.add(ActualLRPStore.copy(view));
+		}
+		return copies;
+	}
+
+	/**
+	 * @return a copy of the cached state that reflects the same point in the event
+	 * stream for all LRPs
+	 */
+	public Snapshot getSnapshot() {
+		synchronized (lock) {
+			return new Snapshot(new HashMap<String, DesiredLRPResponse>(desiredLRPs),
+					new ActualLRPStore(actualLRPs), getLastEventId());
+		}
+	}
+
+	private void onEvent(ReceptorEvent<?> event) {
+		synchronized (lock) {
+			if (listing) {
+				bufferedEvents.add(event);
+			}
+			else {
+				apply(event);
+			}
+		}
+	}
+
+	private void apply(ReceptorEvent<?> event) {
+		lastEventId = event.getId();
+		if (event.getData() == null) {
+			logger.warn("Ignoring event without data: " + event.getType() + " " + event.getId());
+			return;
+		}
+		if (event instanceof DesiredLRPCreatedEvent) {
+			putDesiredLRP(((DesiredLRPCreatedEvent) event).getDesiredLRP());
+		}
+		else if (event instanceof DesiredLRPChangedEvent) {
+			putDesiredLRP(((DesiredLRPChangedEvent) event).getDesiredLRPAfter());
+		}
+		else if (event instanceof DesiredLRPRemovedEvent) {
+			DesiredLRPResponse desiredLRP = ((DesiredLRPRemovedEvent) event).getDesiredLRP();
+			if (desiredLRP != null) {
+				desiredLRPs.remove(desiredLRP.getProcessGuid());
+			}
+		}
+		else if (event instanceof ActualLRPCreatedEvent) {
+			putActualLRP(((ActualLRPCreatedEvent) event).getActualLRP());
+		}
+		else if (event instanceof ActualLRPChangedEvent) {
+			ActualLRPChangedEvent changed = (ActualLRPChangedEvent) event;
+			ActualLRPResponse before = changed.getActualLRPBefore();
+			ActualLRPResponse after = changed.getActualLRPAfter();
+			if (before != null && after != null && !key(before).equals(key(after))) {
+				removeActualLRP(before);
+			}
+			putActualLRP(after);
+		}
+		else if (event instanceof ActualLRPRemovedEvent) {
+			removeActualLRP(((ActualLRPRemovedEvent) event).getActualLRP());
+		}
+	}
+
+	private void putDesiredLRP(DesiredLRPResponse desiredLRP) {
+		if (desiredLRP != null) {
+			desiredLRPs.put(desiredLRP.getProcessGuid(), desiredLRP);
+		}
+	}
+
+	private void putActualLRP(ActualLRPResponse actualLRP) {
+		if (actualLRP == null || actualLRP.getProcessGuid() == null) {
+			return;
+		}
+		ActualLRPResponse existing = actualLRPs.get(actualLRP.getProcessGuid(), actualLRP.getIndex(),
+				actualLRP.isEvacuating());
+		if (existing == null || !isOlder(actualLRP.getModificationTag(), existing.getModificationTag())) {
+			actualLRPs.put(actualLRP);
+		}
+	}
+
+	private void removeActualLRP(ActualLRPResponse actualLRP) {
+		if (actualLRP == null || actualLRP.getProcessGuid() == null) {
+			return;
+		}
+		ActualLRPResponse existing = actualLRPs.get(actualLRP.getProcessGuid(), actualLRP.getIndex(),
+				actualLRP.isEvacuating());
+		if (existing != null && !isOlder(actualLRP.getModificationTag(), existing.getModificationTag())) {
+			actualLRPs.remove(actualLRP.getProcessGuid(), actualLRP.getIndex(), actualLRP.isEvacuating());
+		}
+	}
+
+	/**
+	 * @return whether the tag is known to precede the other tag; tags of different
+	 * epochs are not ordered
+	 */
+	static boolean isOlder(ModificationTag tag, ModificationTag other) {
+		return (tag != null && other != null && tag.getEpoch() != null && tag.getEpoch().equals(other.getEpoch())
+				&& tag.getIndex() < other.getIndex());
+	}
+
+	private static String key(ActualLRPResponse actualLRP) {
+		return key(actualLRP.getProcessGuid(), actualLRP.getIndex(), actualLRP.isEvacuating());
+	}
+
+	private static String key(String processGuid, int index, boolean evacuating) {
+		return processGuid + (evacuating ? "/evacuating/" : "/") + index;
+	}
+
+	/**
+	 * A consistent copy of the cached LRPs.
+	 */
+	public static class Snapshot {
+
+		private final Map<String, DesiredLRPResponse> desiredLRPs;
+
+		/**
+		 * Not modified once the snapshot is created, so its views remain valid.
+		 */
+		private final ActualLRPStore actualLRPs;
+
+		private final Integer lastEventId;
+
+		Snapshot(Map<String, DesiredLRPResponse> desiredLRPs, ActualLRPStore actualLRPs, Integer lastEventId) {
+			this.desiredLRPs = Collections.unmodifiableMap(desiredLRPs);
+			this.actualLRPs = actualLRPs;
+			this.lastEventId = lastEventId;
+		}
+
+		public DesiredLRPResponse getDesiredLRP(String processGuid) {
+			return desiredLRPs.get(processGuid);
+		}
+
+		/**
+		 * @return the desired LRPs by process guid
+		 */
+		public Map<String, DesiredLRPResponse> getDesiredLRPs() {
+			return desiredLRPs;
+		}
+
+		public List<ActualLRPResponse> getActualLRPs() {
+			return actualLRPs.getAll();
+		}
+
+		/**
+		 * @return the id of the last event reflected in the snapshot, or {@code null}
+		 */
+		public Integer getLastEventId() {
+			return lastEventId;
+		}
+	}
+
+	private class EventHandler implements EventListener<ReceptorEvent<?>>, EventGapListener {
+
+		@Override
+		public void onEvent(ReceptorEvent<?> event) {
+			ReceptorStateCache.this.onEvent(event);
+		}
+
+		@Override
+		public void onGap(int lastEventId, int nextEventId) {
+			logger.info(String.format("Events %d to %d may have been missed, listing all LRPs again.", lastEventId, nextEventId));
+			resyncInBackground();
+		}
+	}
+}
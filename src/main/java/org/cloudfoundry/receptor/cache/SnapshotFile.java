@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.cloudfoundry.receptor.commands.ActualLRPResponse;
+import org.cloudfoundry.receptor.commands.DesiredLRPResponse;
+import org.cloudfoundry.receptor.support.ModificationTag;
+import org.cloudfoundry.receptor.support.Port;
+
+/**
+ * Reads and writes a {@link ReceptorStateCache.Snapshot} as a binary file. Desired
+ * LRPs are stored as length-prefixed JSON, in the format of the Receptor API, while
+ * the far more numerous actual LRPs are stored field by field. The file is written
+ * to a temporary file that then replaces the target, and is read through a memory
+ * mapping.
+ */
+class SnapshotFile {
+
+	private static final int MAGIC = 0x52534e50;
+
+	private static final int VERSION = 1;
+
+	private static final int NULL_LENGTH = -1;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final ObjectMapper mapper = new ObjectMapper()
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+	static void write(File file, ReceptorStateCache.Snapshot snapshot) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			Integer lastEventId = snapshot.getLastEventId();
+			out.writeInt(lastEventId != null ? lastEventId : ReceptorStateCache.NO_EVENT_ID);
+			out.writeInt(snapshot.getDesiredLRPs().size());
+			for (DesiredLRPResponse desiredLRP : snapshot.getDesiredLRPs().values()) {
+				byte[] json = mapper.writeValueAsBytes(desiredLRP);
+				out.writeInt(json.length);
+				out.write(json);
+			}
+			List<ActualLRPResponse> actualLRPs = snapshot.getActualLRPs();
+			out.writeInt(actualLRPs.size());
+			for (ActualLRPResponse actualLRP : actualLRPs) {
+				writeActualLRP(out, actualLRP);
+			}
+		}
+		finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static ReceptorStateCache.Snapshot read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException("Not a snapshot file of a supported version: " + file);
+			}
+			int lastEventId = buffer.getInt();
+			int desiredCount = buffer.getInt();
+			Map<String, DesiredLRPResponse> desiredLRPs = new HashMap<String, DesiredLRPResponse>(capacity(desiredCount));
+			byte[] json = new byte[0];
+			for (int i = 0; i < desiredCount; i++) {
+				int length = buffer.getInt();
+				if (json.length < length) {
+					json = new byte[length];
+				}
+				buffer.get(json, 0, length);
+				DesiredLRPResponse desiredLRP = mapper.readValue(json, 0, length, DesiredLRPResponse.class);
+				desiredLRPs.put(desiredLRP.getProcessGuid(), desiredLRP);
+			}
+			int actualCount = buffer.getInt();
+			List<ActualLRPResponse> actualLRPs = new ArrayList<ActualLRPResponse>(actualCount);
+			for (int i = 0; i < actualCount; i++) {
+				actualLRPs.add(readActualLRP(buffer));
+			}
+			return new ReceptorStateCache.Snapshot(desiredLRPs, ReceptorStateCache.store(actualLRPs),
+					(lastEventId != ReceptorStateCache.NO_EVENT_ID ? lastEventId : null));
+		}
+		catch (BufferUnderflowException e) {
+			throw new IOException("Truncated snapshot file: " + file, e);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private static void writeActualLRP(DataOutputStream out, ActualLRPResponse actualLRP) throws IOException {
+		writeString(out, actualLRP.getProcessGuid());
+		writeString(out, actualLRP.getInstanceGuid());
+		writeString(out, actualLRP.getCellId());
+		writeString(out, actualLRP.getDomain());
+		out.writeInt(actualLRP.getIndex());
+		writeString(out, actualLRP.getState());
+		writeString(out, actualLRP.getAddress());
+		Port[] ports = actualLRP.getPorts();
+		out.writeInt(ports != null ? ports.length : NULL_LENGTH);
+		if (ports != null) {
+			for (Port port : ports) {
+				out.writeInt(port.getContainerPort());
+				out.writeInt(port.getHostPort());
+			}
+		}
+		writeString(out, actualLRP.getPlacementError());
+		out.writeInt(actualLRP.getCrashCount());
+		writeString(out, actualLRP.getCrashReason());
+		out.writeLong(actualLRP.getSince());
+		out.writeBoolean(actualLRP.isEvacuating());
+		ModificationTag tag = actualLRP.getModificationTag();
+		out.writeBoolean(tag != null);
+		if (tag != null) {
+			writeString(out, tag.getEpoch());
+			out.writeInt(tag.getIndex());
+		}
+	}
+
+	private static ActualLRPResponse readActualLRP(ByteBuffer buffer) {
+		ActualLRPResponse actualLRP = new ActualLRPResponse();
+		actualLRP.setProcessGuid(readString(buffer));
+		actualLRP.setInstanceGuid(readString(buffer));
+		actualLRP.setCellId(readString(buffer));
+		actualLRP.setDomain(readString(buffer));
+		actualLRP.setIndex(buffer.getInt());
+		String state = readString(buffer);
+		if (state != null) {
+			actualLRP.setState(state);
+		}
+		actualLRP.setAddress(readString(buffer));
+		int portCount = buffer.getInt();
+		if (portCount != NULL_LENGTH) {
+			Port[] ports = new Port[portCount];
+			for (int i = 0; i < portCount; i++) {
+				ports[i] = new Port();
+				ports[i].setContainerPort(buffer.getInt());
+				ports[i].setHostPort(buffer.getInt());
+			}
+			actualLRP.setPorts(ports);
+		}
+		actualLRP.setPlacementError(readString(buffer));
+		actualLRP.setCrashCount(buffer.getInt());
+		actualLRP.setCrashReason(readString(buffer));
+		actualLRP.setSince(buffer.getLong());
+		actualLRP.setEvacuating(buffer.get() != 0);
+		if (buffer.get() != 0) {
+			ModificationTag tag = new ModificationTag();
+			tag.setEpoch(readString(buffer));
+			tag.setIndex(buffer.getInt());
+			actualLRP.setModificationTag(tag);
+		}
+		return actualLRP;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(NULL_LENGTH);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length == NULL_LENGTH) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	private static int capacity(int size) {
+		return Math.max(16, (int) (size / 0.75f) + 1);
+	}
+}
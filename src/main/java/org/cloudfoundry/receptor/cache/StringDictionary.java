@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reference counted dictionary encoding of strings as small integer codes. A code
+ * is released, and may be reused for another string, once all references to it have
+ * been released. Not thread-safe.
+ */
+class StringDictionary {
+
+	static final int NULL_CODE = -1;
+
+	private final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+	private String[] values = new String[64];
+
+	private int[] referenceCounts = new int[64];
+
+	private int[] freeCodes = new int[16];
+
+	private int freeCount;
+
+	private int nextCode;
+
+	StringDictionary() {
+	}
+
+	StringDictionary(StringDictionary other) {
+		this.codes.putAll(other.codes);
+		this.values = other.values.clone();
+		this.referenceCounts = other.referenceCounts.clone();
+		this.freeCodes = other.freeCodes.clone();
+		this.freeCount = other.freeCount;
+		this.nextCode = other.nextCode;
+	}
+
+	/**
+	 * @return the code of the value, with one more reference, or {@link #NULL_CODE}
+	 * for {@code null}
+	 */
+	int acquire(String value) {
+		if (value == null) {
+			return NULL_CODE;
+		}
+		Integer code = codes.get(value);
+		if (code == null) {
+			code = allocate();
+			values[code] = value;
+			codes.put(value, code);
+		}
+		referenceCounts[code]++;
+		return code;
+	}
+
+	void release(int code) {
+		if (code == NULL_CODE) {
+			return;
+		}
+		if (--referenceCounts[code] == 0) {
+			codes.remove(values[code]);
+			values[code] = null;
+			if (freeCount == freeCodes.length) {
+				freeCodes = Arrays.copyOf(freeCodes, freeCount * 2);
+			}
+			freeCodes[freeCount++] = code;
+		}
+	}
+
+	/**
+	 * @return the code of the value, or {@link #NULL_CODE} if it is not in the dictionary
+	 */
+	int lookup(String value) {
+		Integer code = (value != null ? codes.get(value) : null);
+		return (code != null ? code : NULL_CODE);
+	}
+
+	String get(int code) {
+		return (code != NULL_CODE ? values[code] : null);
+	}
+
+	int size() {
+		return codes.size();
+	}
+
+	void clear() {
+		codes.clear();
+		Arrays.fill(values, null);
+		Arrays.fill(referenceCounts, 0);
+		freeCount = 0;
+		nextCode = 0;
+	}
+
+	private int allocate() {
+		if (freeCount > 0) {
+			return freeCodes[--freeCount];
+		}
+		if (nextCode == values.length) {
+			values = Arrays.copyOf(values, nextCode * 2);
+			referenceCounts = Arrays.copyOf(referenceCounts, nextCode * 2);
+		}
+		return nextCode++;
+	}
+}
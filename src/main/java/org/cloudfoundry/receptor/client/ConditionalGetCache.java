@@ -0,0 +1,223 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.client;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.cloudfoundry.receptor.commands.InterningStringDeserializer;
+import org.cloudfoundry.receptor.support.StringInterner;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestOperations;
+import org.springframework.web.util.UriTemplate;
+
+/**
+ * Performs conditional GET requests and keeps the parsed result of each URL. The
+ * validators of the last response, its {@code ETag} and {@code Last-Modified} headers,
+ * are sent as {@code If-None-Match} and {@code If-Modified-Since}, and the cached
+ * result is returned when the server responds with 304 Not Modified. When the server
+ * sends a full response, its body is hashed and compared with that of the cached
+ * result, so an unchanged body is not bound again.
+ * <p>
+ * A 304 response without a cached result, such as one from a proxy that added its
+ * own validators, has no body to read. The request is then sent again with
+ * {@code Cache-Control: no-cache}, and fails if that is not answered in full either.
+ * <p>
+ * The results of the most recently used {@value #MAX_ENTRIES} URLs are kept. Lists
+ * are returned unmodifiable and arrays as copies, since they are shared between calls.
+ */
+class ConditionalGetCache {
+
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	static final int MAX_ENTRIES = 64;
+
+	private final ObjectMapper mapper = new ObjectMapper()
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+	private final RestOperations restTemplate;
+
+	/**
+	 * Ordered by access, guarded by itself.
+	 */
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ConditionalGetCache.Entry> eldest) {
+			return (size() > MAX_ENTRIES);
+		}
+	};
+
+	/**
+	 * @param restTemplate the template used to send requests
+	 * @param interner the interner for strings in responses, or {@code null} for none
+	 */
+	ConditionalGetCache(RestOperations restTemplate, StringInterner interner) {
+		this.restTemplate = restTemplate;
+		if (interner != null) {
+			this.mapper.registerModule(InterningStringDeserializer.module(interner));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	<T> T get(String url, Type type, Object... uriVariables) {
+		String key = new UriTemplate(url).expand(uriVariables).toString();
+		JavaType javaType = mapper.getTypeFactory().constructType(type);
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+		Entry result = restTemplate.execute(url, HttpMethod.GET, new ConditionalRequestCallback(entry, false),
+				new CachingResponseExtractor(entry, javaType), uriVariables);
+		if (result == null) {
+			result = restTemplate.execute(url, HttpMethod.GET, new ConditionalRequestCallback(null, true),
+					new CachingResponseExtractor(null, javaType), uriVariables);
+			if (result == null) {
+				throw new RestClientException("Received 304 Not Modified for " + key
+						+ " to a request without validators");
+			}
+		}
+		if (result != entry) {
+			synchronized (entries) {
+				entries.put(key, result);
+			}
+		}
+		Object value = result.value;
+		return (T) (value instanceof Object[] ? ((Object[]) value).clone() : value);
+	}
+
+	void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	private static Object unmodifiable(Object value) {
+		return (value instanceof List ? Collections.unmodifiableList((List<?>) value) : value);
+	}
+
+	private static byte[] digest(byte[] body) {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(body);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(DIGEST_ALGORITHM + " is not available", e);
+		}
+	}
+
+	private static class Entry {
+
+		private final String etag;
+
+		private final String lastModified;
+
+		private final byte[] digest;
+
+		private final Object value;
+
+		private Entry(String etag, String lastModified, byte[] digest, Object value) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.digest = digest;
+			this.value = value;
+		}
+	}
+
+	private static class ConditionalRequestCallback implements RequestCallback {
+
+		private final Entry entry;
+
+		private final boolean noCache;
+
+		private ConditionalRequestCallback(Entry entry, boolean noCache) {
+			this.entry = entry;
+			this.noCache = noCache;
+		}
+
+		@Override
+		public void doWithRequest(ClientHttpRequest request) throws IOException {
+			HttpHeaders headers = request.getHeaders();
+			headers.setAccept(Arrays.asList(MediaType.APPLICATION_JSON));
+			if (noCache) {
+				headers.setCacheControl("no-cache");
+				headers.setPragma("no-cache");
+			}
+			if (entry != null) {
+				if (entry.etag != null) {
+					headers.setIfNoneMatch(entry.etag);
+				}
+				if (entry.lastModified != null) {
+					headers.set(HttpHeaders.IF_MODIFIED_SINCE, entry.lastModified);
+				}
+			}
+		}
+	}
+
+	private class CachingResponseExtractor implements ResponseExtractor<Entry> {
+
+		private final Entry entry;
+
+		private final JavaType type;
+
+		private CachingResponseExtractor(Entry entry, JavaType type) {
+			this.entry = entry;
+			this.type = type;
+		}
+
+		/**
+		 * @return the entry for the response, or {@code null} for a 304 response
+		 * without a cached entry
+		 */
+		@Override
+		public Entry extractData(ClientHttpResponse response) throws IOException {
+			if (response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+				return entry;
+			}
+			HttpHeaders headers = response.getHeaders();
+			byte[] body = StreamUtils.copyToByteArray(response.getBody());
+			byte[] digest = digest(body);
+			Object value = (entry != null && Arrays.equals(digest, entry.digest) ? entry.value
+					: unmodifiable(mapper.readValue(body, type)));
+			return new Entry(headers.getETag(), headers.getFirst(HttpHeaders.LAST_MODIFIED), digest, value);
+		}
+	}
+}
@@ -16,23 +16,45 @@
 
 package org.cloudfoundry.receptor.client;
 
+import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import org.cloudfoundry.receptor.commands.ActualLRPResponse;
 import org.cloudfoundry.receptor.commands.CellResponse;
 import org.cloudfoundry.receptor.commands.DesiredLRPCreateRequest;
 import org.cloudfoundry.receptor.commands.DesiredLRPResponse;
 import org.cloudfoundry.receptor.commands.DesiredLRPUpdateRequest;
+import org.cloudfoundry.receptor.commands.InterningStringDeserializer;
 import org.cloudfoundry.receptor.commands.TaskCreateRequest;
 import org.cloudfoundry.receptor.commands.TaskResponse;
+import org.cloudfoundry.receptor.events.BatchEventListener;
+import org.cloudfoundry.receptor.events.DispatchMode;
 import org.cloudfoundry.receptor.events.EventDispatcher;
+import org.cloudfoundry.receptor.events.EventFilter;
+import org.cloudfoundry.receptor.events.EventGapListener;
 import org.cloudfoundry.receptor.events.EventListener;
+import org.cloudfoundry.receptor.events.EventPublisher;
+import org.cloudfoundry.receptor.events.ListenerIsolationPolicy;
+import org.cloudfoundry.receptor.events.ListenerStats;
 import org.cloudfoundry.receptor.events.ReceptorEvent;
+import org.cloudfoundry.receptor.events.ReconnectPolicy;
+import org.cloudfoundry.receptor.events.SharedEventDispatchers;
+import org.cloudfoundry.receptor.events.StreamStallListener;
+import org.cloudfoundry.receptor.support.StringInterner;
+import org.reactivestreams.Publisher;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.util.Assert;
 import org.springframework.web.client.RestOperations;
 import org.springframework.web.client.RestTemplate;
 
@@ -43,7 +65,7 @@ import org.springframework.web.client.RestTemplate;
  * @author Mark Fisher
  * @author Matt Stine
  */
-public class ReceptorClient implements ReceptorOperations {
+public class ReceptorClient implements ReceptorOperations, Closeable {
 
 	private static final String DEFAULT_RECEPTOR_HOST = "receptor.192.168.11.11.xip.io";
 
@@ -55,12 +77,33 @@ public class ReceptorClient implements ReceptorOperations {
 
 	protected static final ParameterizedTypeReference<List<CellResponse>> CELL_RESPONSE_LIST_TYPE = new ParameterizedTypeReference<List<CellResponse>>(){};
 
+	/**
+	 * Reads the shared event streams of clients that were not given a RestOperations,
+	 * since shared event streams are keyed by RestOperations instance as well as URL.
+	 */
+	private static final RestTemplate SHARED_EVENT_STREAM_REST_TEMPLATE = new RestTemplate();
+
 	private final String baseUrl;
 
 	private final RestOperations restTemplate;
 
 	private final EventDispatcher eventDispatcher;
 
+	private final boolean sharedEventStream;
+
+	/**
+	 * The listeners subscribed through this client, removed from a shared event stream on close.
+	 */
+	private final Set<Object> subscriptions = new CopyOnWriteArraySet<Object>();
+
+	private EventPublisher eventPublisher;
+
+	private boolean closed;
+
+	private volatile ConditionalGetCache responseCache;
+
+	private volatile StringInterner stringInterner;
+
 	public ReceptorClient() {
 		this(DEFAULT_RECEPTOR_HOST);
 	}
@@ -73,10 +116,160 @@ public class ReceptorClient implements ReceptorOperations {
 		this(receptorHost, new RestTemplate(factory));
 	}
 
+	/**
+	 * @param receptorHost the host (and optionally scheme and port) of the Receptor API
+	 * @param factory the factory for HTTP requests
+	 * @param dispatchingExecutor the Executor used to invoke event listeners
+	 */
+	public ReceptorClient(String receptorHost, ClientHttpRequestFactory factory, Executor dispatchingExecutor) {
+		this(receptorHost, new RestTemplate(factory), dispatchingExecutor);
+	}
+
+	/**
+	 * @param receptorHost the host (and optionally scheme and port) of the Receptor API
+	 * @param sharedEventStream whether to share a single event stream connection with
+	 * all other clients of the same Receptor in this JVM created with this constructor,
+	 * see {@link SharedEventDispatchers}
+	 */
+	public ReceptorClient(String receptorHost, boolean sharedEventStream) {
+		this(receptorHost, new RestTemplate(), (sharedEventStream ? SHARED_EVENT_STREAM_REST_TEMPLATE : null));
+	}
+
+	/**
+	 * Create a client whose event stream fails over between the given equivalent
+	 * Receptors, see {@link EventDispatcher#EventDispatcher(List, RestOperations)}.
+	 * Other requests are sent to the first host.
+	 *
+	 * @param receptorHosts the hosts (and optionally scheme and port) of the Receptor API
+	 */
+	public ReceptorClient(List<String> receptorHosts) {
+		this(receptorHosts, new RestTemplate());
+	}
+
 	protected ReceptorClient(String receptorHost, RestOperations restTemplate) {
-		this.baseUrl = (receptorHost.contains("://") ? receptorHost : "http://" + receptorHost) + "/v1";
+		this(receptorHost, restTemplate, false);
+	}
+
+	protected ReceptorClient(List<String> receptorHosts, RestOperations restTemplate) {
+		Assert.notEmpty(receptorHosts, "at least one Receptor host is required");
+		this.baseUrl = baseUrl(receptorHosts.get(0));
 		this.restTemplate = restTemplate;
-		this.eventDispatcher = new EventDispatcher(String.format("%s/events", baseUrl), restTemplate);
+		this.sharedEventStream = false;
+		List<String> eventUrls = new ArrayList<String>();
+		for (String receptorHost : receptorHosts) {
+			eventUrls.add(String.format("%s/events", baseUrl(receptorHost)));
+		}
+		this.eventDispatcher = new EventDispatcher(eventUrls, restTemplate);
+	}
+
+	/**
+	 * @param receptorHost the host (and optionally scheme and port) of the Receptor API
+	 * @param restTemplate the RestOperations used for all requests
+	 * @param sharedEventStream whether to share a single event stream connection with
+	 * all other clients of the same Receptor in this JVM that use the same RestOperations
+	 */
+	protected ReceptorClient(String receptorHost, RestOperations restTemplate, boolean sharedEventStream) {
+		this(receptorHost, restTemplate, (sharedEventStream ? restTemplate : null));
+	}
+
+	private ReceptorClient(String receptorHost, RestOperations restTemplate, RestOperations sharedEventStreamTemplate) {
+		this.baseUrl = baseUrl(receptorHost);
+		this.restTemplate = restTemplate;
+		this.sharedEventStream = (sharedEventStreamTemplate != null);
+		String url = String.format("%s/events", baseUrl);
+		this.eventDispatcher = (sharedEventStream ? SharedEventDispatchers.acquire(url, sharedEventStreamTemplate)
+				: new EventDispatcher(url, restTemplate));
+	}
+
+	protected ReceptorClient(String receptorHost, RestOperations restTemplate, Executor dispatchingExecutor) {
+		this.baseUrl = baseUrl(receptorHost);
+		this.restTemplate = restTemplate;
+		this.sharedEventStream = false;
+		this.eventDispatcher = new EventDispatcher(String.format("%s/events", baseUrl), restTemplate, dispatchingExecutor);
+	}
+
+	private static String baseUrl(String receptorHost) {
+		return (receptorHost.contains("://") ? receptorHost : "http://" + receptorHost) + "/v1";
+	}
+
+	/**
+	 * Set the {@link ReconnectPolicy} used when (re)connecting to the event stream.
+	 *
+	 * @param reconnectPolicy the policy to use
+	 */
+	public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+		this.eventDispatcher.setReconnectPolicy(reconnectPolicy);
+	}
+
+	/**
+	 * @return the {@link ReconnectPolicy} of the event stream, e.g. to inspect its breaker state
+	 */
+	public ReconnectPolicy getReconnectPolicy() {
+		return this.eventDispatcher.getReconnectPolicy();
+	}
+
+	/**
+	 * Isolate event listeners from each other, see {@link ListenerIsolationPolicy}.
+	 *
+	 * @param isolationPolicy the policy to apply, or {@code null} to disable isolation
+	 */
+	public void setListenerIsolationPolicy(ListenerIsolationPolicy isolationPolicy) {
+		this.eventDispatcher.setListenerIsolationPolicy(isolationPolicy);
+	}
+
+	/**
+	 * @param listener an event listener subscribed through this client
+	 * @return the latency, error and drop statistics of the listener, or {@code null}
+	 */
+	public ListenerStats getListenerStats(Object listener) {
+		return this.eventDispatcher.getListenerStats(listener);
+	}
+
+	/**
+	 * Set the time after which an event stream that has delivered no data, including
+	 * heartbeats, is closed and reconnected. The default of 0 disables stall detection.
+	 *
+	 * @param idleTimeout the idle timeout in milliseconds
+	 */
+	public void setEventStreamIdleTimeout(long idleTimeout) {
+		this.eventDispatcher.setIdleTimeout(idleTimeout);
+	}
+
+	/**
+	 * Cache the results of the list requests for desired LRPs, cells and domains, and
+	 * revalidate them with conditional GET requests, see {@link ConditionalGetCache}.
+	 * Actual LRPs and tasks change too often to benefit and are always requested in
+	 * full. While enabled, the returned lists are unmodifiable, and unchanged results
+	 * share the same elements, which must not be modified.
+	 *
+	 * @param responseCaching whether to cache the results of list requests
+	 */
+	public void setResponseCaching(boolean responseCaching) {
+		this.responseCache = (responseCaching ? new ConditionalGetCache(restTemplate, stringInterner) : null);
+	}
+
+	/**
+	 * Deserialize responses so that equal strings, such as the domains, cell ids and
+	 * process guids repeated across many LRPs, share one instance held by the given
+	 * {@link StringInterner}. This replaces the {@code ObjectMapper} of the JSON
+	 * message converter of the {@link RestTemplate} with a copy that interns strings.
+	 *
+	 * @param stringInterner the interner to use
+	 */
+	public void setStringInterner(StringInterner stringInterner) {
+		Assert.notNull(stringInterner, "StringInterner is required");
+		Assert.state(restTemplate instanceof RestTemplate, "String interning requires a RestTemplate");
+		for (HttpMessageConverter<?> converter : ((RestTemplate) restTemplate).getMessageConverters()) {
+			if (converter instanceof MappingJackson2HttpMessageConverter) {
+				MappingJackson2HttpMessageConverter jsonConverter = (MappingJackson2HttpMessageConverter) converter;
+				jsonConverter.setObjectMapper(jsonConverter.getObjectMapper().copy()
+						.registerModule(InterningStringDeserializer.module(stringInterner)));
+			}
+		}
+		this.stringInterner = stringInterner;
+		if (this.responseCache != null) {
+			this.responseCache = new ConditionalGetCache(restTemplate, stringInterner);
+		}
 	}
 
 	/* (non-Javadoc)
@@ -100,6 +293,10 @@ public class ReceptorClient implements ReceptorOperations {
 	 */
 	@Override
 	public List<DesiredLRPResponse> getDesiredLRPs() {
+		ConditionalGetCache responseCache = this.responseCache;
+		if (responseCache != null) {
+			return responseCache.get("{baseUrl}/desired_lrps", DESIRED_LRP_RESPONSE_LIST_TYPE.getType(), baseUrl);
+		}
 		return restTemplate.exchange("{baseUrl}/desired_lrps", HttpMethod.GET, null, DESIRED_LRP_RESPONSE_LIST_TYPE, baseUrl).getBody();
 	}
 
@@ -108,6 +305,10 @@ public class ReceptorClient implements ReceptorOperations {
 	 */
 	@Override
 	public List<DesiredLRPResponse> getDesiredLRPsByDomain(String domain) {
+		ConditionalGetCache responseCache = this.responseCache;
+		if (responseCache != null) {
+			return responseCache.get("{baseUrl}/desired_lrps?domain={domain}", DESIRED_LRP_RESPONSE_LIST_TYPE.getType(), baseUrl, domain);
+		}
 		return restTemplate.exchange("{baseUrl}/desired_lrps?domain={domain}", HttpMethod.GET, null, DESIRED_LRP_RESPONSE_LIST_TYPE, baseUrl, domain).getBody();
 	}
 
@@ -220,6 +421,10 @@ public class ReceptorClient implements ReceptorOperations {
 	 */
 	@Override
 	public List<CellResponse> getCells() {
+		ConditionalGetCache responseCache = this.responseCache;
+		if (responseCache != null) {
+			return responseCache.get("{baseUrl}/cells", CELL_RESPONSE_LIST_TYPE.getType(), baseUrl);
+		}
 		return restTemplate.exchange("{baseUrl}/cells", HttpMethod.GET, null, CELL_RESPONSE_LIST_TYPE, baseUrl).getBody();
 	}
 
@@ -241,6 +446,10 @@ public class ReceptorClient implements ReceptorOperations {
 	 */
 	@Override
 	public String[] getDomains() {
+		ConditionalGetCache responseCache = this.responseCache;
+		if (responseCache != null) {
+			return responseCache.get("{baseUrl}/domains", String[].class, baseUrl);
+		}
 		return restTemplate.exchange("{baseUrl}/domains", HttpMethod.GET, null, String[].class, baseUrl).getBody();
 	}
 
@@ -250,5 +459,139 @@ public class ReceptorClient implements ReceptorOperations {
 	@Override
 	public <E extends ReceptorEvent<?>> void subscribeToEvents(EventListener<E> listener) {
 		eventDispatcher.addListener(listener);
+		subscriptions.add(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.cloudfoundry.receptor.client.ReceptorOperations#subscribeToEvents(org.cloudfoundry.receptor.events.EventListener, org.cloudfoundry.receptor.events.EventFilter)
+	 */
+	@Override
+	public <E extends ReceptorEvent<?>> void subscribeToEvents(EventListener<E> listener, EventFilter filter) {
+		eventDispatcher.addListener(listener, filter);
+		subscriptions.add(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.cloudfoundry.receptor.client.ReceptorOperations#subscribeToEvents(org.cloudfoundry.receptor.events.EventListener, org.cloudfoundry.receptor.events.EventFilter, org.cloudfoundry.receptor.events.DispatchMode)
+	 */
+	@Override
+	public <E extends ReceptorEvent<?>> void subscribeToEvents(EventListener<E> listener, EventFilter filter, DispatchMode mode) {
+		eventDispatcher.addListener(listener, filter, mode);
+		subscriptions.add(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.cloudfoundry.receptor.client.ReceptorOperations#getEventPublisher()
+	 */
+	@Override
+	public synchronized Publisher<ReceptorEvent<?>> getEventPublisher() {
+		if (eventPublisher == null) {
+			eventPublisher = new EventPublisher(eventDispatcher);
+		}
+		return eventPublisher;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.cloudfoundry.receptor.client.ReceptorOperations#subscribeToEvents(org.cloudfoundry.receptor.events.BatchEventListener, int, long)
+	 */
+	@Override
+	public <E extends ReceptorEvent<?>> void subscribeToEvents(BatchEventListener<E> listener, int maxBatchSize, long maxLinger) {
+		eventDispatcher.addBatchListener(listener, maxBatchSize, maxLinger);
+		subscriptions.add(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.cloudfoundry.receptor.client.ReceptorOperations#subscribeToEvents(org.cloudfoundry.receptor.events.BatchEventListener, org.cloudfoundry.receptor.events.EventFilter, int, long)
+	 */
+	@Override
+	public <E extends ReceptorEvent<?>> void subscribeToEvents(BatchEventListener<E> listener, EventFilter filter, int maxBatchSize, long maxLinger) {
+		eventDispatcher.addBatchListener(listener, filter, maxBatchSize, maxLinger);
+		subscriptions.add(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.cloudfoundry.receptor.client.ReceptorOperations#unsubscribe(java.lang.Object)
+	 */
+	@Override
+	public boolean unsubscribe(Object listener) {
+		subscriptions.remove(listener);
+		removeEventSubscriptions(listener);
+		return eventDispatcher.removeListener(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.cloudfoundry.receptor.client.ReceptorOperations#subscribeToEventGaps(org.cloudfoundry.receptor.events.EventGapListener)
+	 */
+	@Override
+	public void subscribeToEventGaps(EventGapListener listener) {
+		eventDispatcher.addGapListener(listener);
+		subscriptions.add(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.cloudfoundry.receptor.client.ReceptorOperations#subscribeToEventStalls(org.cloudfoundry.receptor.events.StreamStallListener)
+	 */
+	@Override
+	public void subscribeToEventStalls(StreamStallListener listener) {
+		eventDispatcher.addStallListener(listener);
+		subscriptions.add(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.cloudfoundry.receptor.client.ReceptorOperations#resumeEventsAfter(int)
+	 */
+	@Override
+	public void resumeEventsAfter(int lastEventId) {
+		eventDispatcher.setLastEventId(lastEventId);
+	}
+
+	private void removeEventSubscriptions(Object listener) {
+		if (listener instanceof EventGapListener) {
+			eventDispatcher.removeGapListener((EventGapListener) listener);
+		}
+		if (listener instanceof StreamStallListener) {
+			eventDispatcher.removeStallListener((StreamStallListener) listener);
+		}
+	}
+
+	/**
+	 * Close the event stream and stop the event threads of this client, waiting up to
+	 * 10 seconds for pending events to be dispatched. A shared event stream is only
+	 * closed once all clients using it are closed.
+	 */
+	@Override
+	public void close() {
+		close(EventDispatcher.DEFAULT_CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Close the event stream and stop the event threads of this client, waiting up to
+	 * the given timeout for pending events to be dispatched. A shared event stream is
+	 * only closed once all clients using it are closed. Closing a client more than once
+	 * has no further effect.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout
+	 * @return whether all pending events were dispatched within the timeout
+	 */
+	public boolean close(long timeout, TimeUnit unit) {
+		synchronized (this) {
+			if (closed) {
+				return true;
+			}
+			closed = true;
+			if (eventPublisher != null) {
+				eventPublisher.complete();
+			}
+		}
+		if (!sharedEventStream) {
+			return eventDispatcher.close(timeout, unit);
+		}
+		for (Object listener : subscriptions) {
+			eventDispatcher.removeListener(listener);
+			removeEventSubscriptions(listener);
+		}
+		subscriptions.clear();
+		return SharedEventDispatchers.release(eventDispatcher, timeout, unit);
 	}
 }
@@ -25,8 +25,14 @@ import org.cloudfoundry.receptor.commands.DesiredLRPResponse;
 import org.cloudfoundry.receptor.commands.DesiredLRPUpdateRequest;
 import org.cloudfoundry.receptor.commands.TaskCreateRequest;
 import org.cloudfoundry.receptor.commands.TaskResponse;
+import org.cloudfoundry.receptor.events.BatchEventListener;
+import org.cloudfoundry.receptor.events.DispatchMode;
+import org.cloudfoundry.receptor.events.EventFilter;
+import org.cloudfoundry.receptor.events.EventGapListener;
 import org.cloudfoundry.receptor.events.EventListener;
 import org.cloudfoundry.receptor.events.ReceptorEvent;
+import org.cloudfoundry.receptor.events.StreamStallListener;
+import org.reactivestreams.Publisher;
 
 /**
  * Definition of available operations for interacting with the Receptor API.
@@ -91,4 +97,91 @@ public interface ReceptorOperations {
 	 */
 	<E extends ReceptorEvent<?>> void subscribeToEvents(EventListener<E> listener);
 
+	/**
+	 * Add an {@link EventListener} to be invoked when a {@link ReceptorEvent} matching
+	 * the given {@link EventFilter} occurs. Events that do not match are not bound.
+	 *
+	 * @param listener the listener to invoke
+	 * @param filter the filter on domain, process guid, cell id and/or state
+	 * @param <E> ReceptorEvent type expected by the listener
+	 */
+	<E extends ReceptorEvent<?>> void subscribeToEvents(EventListener<E> listener, EventFilter filter);
+
+	/**
+	 * Add an {@link EventListener} to be invoked according to the given
+	 * {@link DispatchMode}, e.g. inline on the thread reading the event stream.
+	 *
+	 * @param listener the listener to invoke
+	 * @param filter the filter on domain, process guid, cell id and/or state, or {@code null}
+	 * @param mode how to invoke the listener
+	 * @param <E> ReceptorEvent type expected by the listener
+	 */
+	<E extends ReceptorEvent<?>> void subscribeToEvents(EventListener<E> listener, EventFilter filter, DispatchMode mode);
+
+	/**
+	 * Return a Reactive Streams {@link Publisher} of all events. Reading of the event
+	 * stream pauses while a subscriber's buffer is full and it signals no demand.
+	 *
+	 * @return the publisher
+	 */
+	Publisher<ReceptorEvent<?>> getEventPublisher();
+
+	/**
+	 * Add a {@link BatchEventListener} to be invoked with batches of {@link ReceptorEvent}s.
+	 *
+	 * @param listener the listener to invoke
+	 * @param maxBatchSize the maximum number of events per batch
+	 * @param maxLinger the maximum number of milliseconds to wait for a batch to fill up
+	 * @param <E> ReceptorEvent type expected by the listener
+	 */
+	<E extends ReceptorEvent<?>> void subscribeToEvents(BatchEventListener<E> listener, int maxBatchSize, long maxLinger);
+
+	/**
+	 * Add a {@link BatchEventListener} to be invoked with batches of {@link ReceptorEvent}s
+	 * matching the given {@link EventFilter}.
+	 *
+	 * @param listener the listener to invoke
+	 * @param filter the filter on domain, process guid, cell id and/or state
+	 * @param maxBatchSize the maximum number of events per batch
+	 * @param maxLinger the maximum number of milliseconds to wait for a batch to fill up
+	 * @param <E> ReceptorEvent type expected by the listener
+	 */
+	<E extends ReceptorEvent<?>> void subscribeToEvents(BatchEventListener<E> listener, EventFilter filter, int maxBatchSize, long maxLinger);
+
+	/**
+	 * Remove an {@link EventListener} or {@link BatchEventListener}, as well as any
+	 * {@link EventGapListener} or {@link StreamStallListener} subscription of the same
+	 * object. When no event listeners remain, the event stream is closed until another
+	 * listener is subscribed.
+	 *
+	 * @param listener the listener to remove
+	 * @return whether the listener had been subscribed
+	 */
+	boolean unsubscribe(Object listener);
+
+	/**
+	 * Add an {@link EventGapListener} to be invoked when events may have been missed,
+	 * e.g. when the event stream could not be resumed after a reconnect.
+	 *
+	 * @param listener the listener to invoke
+	 */
+	void subscribeToEventGaps(EventGapListener listener);
+
+	/**
+	 * Add a {@link StreamStallListener} to be invoked when the event stream has been idle
+	 * for longer than the idle timeout, and when it resumes after reconnecting.
+	 *
+	 * @param listener the listener to invoke
+	 */
+	void subscribeToEventStalls(StreamStallListener listener);
+
+	/**
+	 * Resume the event stream after the given event, e.g. the last one applied to a
+	 * persisted snapshot. {@link EventGapListener}s are notified if the next event
+	 * received does not follow it.
+	 *
+	 * @param lastEventId the id of the last event that was processed
+	 */
+	void resumeEventsAfter(int lastEventId);
+
 }
@@ -109,7 +109,7 @@ public class ActualLRPResponse {
 	}
 
 	public String getState() {
-		return state.toString();
+		return (state != null ? state.toString() : null);
 	}
 
 	public void setState(String state) {
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.commands;
+
+import java.io.IOException;
+
+import org.cloudfoundry.receptor.support.StringInterner;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.deser.std.StdScalarDeserializer;
+import com.fasterxml.jackson.databind.deser.std.StringDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+/**
+ * Deserializes strings through a {@link StringInterner}, so that values repeated
+ * across responses share one instance. Strings longer than
+ * {@link #MAX_INTERNED_LENGTH} are rarely repeated and are not interned.
+ */
+public class InterningStringDeserializer extends StdScalarDeserializer<String> {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int MAX_INTERNED_LENGTH = 64;
+
+	private final transient StringInterner interner;
+
+	public InterningStringDeserializer(StringInterner interner) {
+		super(String.class);
+		this.interner = interner;
+	}
+
+	/**
+	 * @return a module that registers a deserializer for all strings using the interner
+	 */
+	public static Module module(StringInterner interner) {
+		SimpleModule module = new SimpleModule("InterningStringModule");
+		module.addDeserializer(String.class, new InterningStringDeserializer(interner));
+		return module;
+	}
+
+	@Override
+	public String deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+		if (parser.getCurrentToken() == JsonToken.VALUE_STRING && parser.getTextLength() <= MAX_INTERNED_LENGTH) {
+			return interner.intern(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+		}
+		return StringDeserializer.instance.deserialize(parser, context);
+	}
+}
@@ -36,4 +36,9 @@ public class ActualLRPChangedEvent extends ReceptorEvent<ActualLRPResponse> {
 	public ActualLRPResponse getActualLRPAfter() {
 		return getData().get("actual_lrp_after");
 	}
+
+	@Override
+	public String getKey() {
+		return getKey("actual_lrp_after", true);
+	}
 }
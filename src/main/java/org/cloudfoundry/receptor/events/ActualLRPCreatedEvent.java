@@ -28,4 +28,13 @@ public class ActualLRPCreatedEvent extends ReceptorEvent<ActualLRPResponse> {
 	public ActualLRPCreatedEvent(int id) {
 		super(id, TYPE);
 	}
+
+	public ActualLRPResponse getActualLRP() {
+		return getData().get("actual_lrp");
+	}
+
+	@Override
+	public String getKey() {
+		return getKey("actual_lrp", true);
+	}
 }
@@ -28,4 +28,13 @@ public class ActualLRPRemovedEvent extends ReceptorEvent<ActualLRPResponse> {
 	public ActualLRPRemovedEvent(int id) {
 		super(id, TYPE);
 	}
+
+	public ActualLRPResponse getActualLRP() {
+		return getData().get("actual_lrp");
+	}
+
+	@Override
+	public String getKey() {
+		return getKey("actual_lrp", true);
+	}
 }
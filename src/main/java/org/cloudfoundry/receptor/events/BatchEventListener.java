@@ -0,0 +1,31 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import java.util.List;
+
+/**
+ * Variant of {@link EventListener} that receives events in batches. A batch is
+ * delivered once it reaches the maximum batch size, or once the maximum linger time
+ * has elapsed since its first event was read, whichever comes first. Batches for
+ * a listener are delivered one at a time, in order.
+ */
+public interface BatchEventListener<E extends ReceptorEvent<?>> {
+
+	void onEvents(List<E> events);
+
+}
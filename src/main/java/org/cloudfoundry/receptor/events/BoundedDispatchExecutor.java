@@ -0,0 +1,251 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * {@link Executor} for event dispatching that runs tasks on a fixed number of threads
+ * fed by a bounded queue. The {@link OverflowPolicy} determines what happens when the
+ * queue is full.
+ */
+public class BoundedDispatchExecutor implements Executor {
+
+	public static enum OverflowPolicy {
+
+		/**
+		 * Block the submitting thread, i.e. the event stream reader, until there is room.
+		 */
+		BLOCK,
+
+		/**
+		 * Discard the oldest pending task to make room for the new one. Required tasks
+		 * are never discarded; block if only those are pending.
+		 */
+		DROP_OLDEST,
+
+		/**
+		 * Discard the new task.
+		 */
+		DROP_NEWEST,
+
+		/**
+		 * Replace a pending task that has the same conflation key (the same listener
+		 * and LRP) with the new one, and block if there is none and no room.
+		 */
+		CONFLATE
+	}
+
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	private final OverflowPolicy overflowPolicy;
+
+	private final ThreadPoolExecutor executor;
+
+	private final Map<Object, ConflatingTask> pendingTasks = new HashMap<Object, ConflatingTask>();
+
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	private final AtomicLong conflatedCount = new AtomicLong();
+
+	public BoundedDispatchExecutor() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+	}
+
+	/**
+	 * @param threads the number of dispatching threads
+	 * @param capacity the maximum number of pending tasks
+	 * @param overflowPolicy what to do with new tasks when the queue is full
+	 */
+	public BoundedDispatchExecutor(int threads, int capacity, OverflowPolicy overflowPolicy) {
+		Assert.isTrue(threads > 0, "threads must be positive");
+		Assert.isTrue(capacity > 0, "capacity must be positive");
+		Assert.notNull(overflowPolicy, "OverflowPolicy is required");
+		this.overflowPolicy = overflowPolicy;
+		this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(capacity), new CustomizableThreadFactory("receptor-event-dispatcher-"),
+				new OverflowHandler());
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		if (overflowPolicy == OverflowPolicy.CONFLATE && task instanceof ConflatableTask) {
+			Object key = ((ConflatableTask) task).getConflationKey();
+			if (key != null) {
+				synchronized (pendingTasks) {
+					ConflatingTask pending = pendingTasks.get(key);
+					if (pending != null) {
+						pending.task = task;
+						conflatedCount.incrementAndGet();
+						return;
+					}
+					pending = new ConflatingTask(key, task);
+					pendingTasks.put(key, pending);
+					task = pending;
+				}
+			}
+		}
+		executor.execute(task);
+	}
+
+	/**
+	 * Stop accepting new tasks; pending tasks are still run.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Stop accepting new tasks, discard pending tasks and interrupt running ones.
+	 */
+	public void shutdownNow() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Wait for pending tasks to complete after {@link #shutdown()}.
+	 *
+	 * @return whether all tasks completed before the timeout elapsed
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * @return the number of tasks waiting to be run
+	 */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return the number of tasks discarded because the queue was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * @return the number of tasks that replaced a pending task with the same conflation key
+	 */
+	public long getConflatedCount() {
+		return conflatedCount.get();
+	}
+
+	/**
+	 * A task that may be replaced by a newer task with an equal key while it is pending.
+	 */
+	interface ConflatableTask extends Runnable {
+
+		Object getConflationKey();
+	}
+
+	/**
+	 * A task that is never dropped by the overflow policy, but waits for queue space.
+	 */
+	interface RequiredTask extends Runnable {
+	}
+
+	private class ConflatingTask implements Runnable {
+
+		private final Object key;
+
+		private Runnable task;
+
+		private ConflatingTask(Object key, Runnable task) {
+			this.key = key;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			Runnable latest;
+			synchronized (pendingTasks) {
+				pendingTasks.remove(key);
+				latest = this.task;
+			}
+			latest.run();
+		}
+	}
+
+	private class OverflowHandler implements RejectedExecutionHandler {
+
+		@Override
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Executor has been shut down");
+			}
+			BlockingQueue<Runnable> queue = executor.getQueue();
+			switch (task instanceof RequiredTask ? OverflowPolicy.BLOCK : overflowPolicy) {
+			case DROP_OLDEST:
+				while (!queue.offer(task)) {
+					if (!dropOldest(queue)) {
+						put(queue, task);
+						break;
+					}
+				}
+				break;
+			case DROP_NEWEST:
+				droppedCount.incrementAndGet();
+				break;
+			default:
+				put(queue, task);
+			}
+		}
+
+		/**
+		 * Remove the oldest pending task that is not a {@link RequiredTask}.
+		 *
+		 * @return whether there may be room now, {@code false} if all pending tasks are required
+		 */
+		private boolean dropOldest(BlockingQueue<Runnable> queue) {
+			for (Runnable pending : queue) {
+				if (!(pending instanceof RequiredTask) && queue.remove(pending)) {
+					droppedCount.incrementAndGet();
+					return true;
+				}
+			}
+			return queue.isEmpty();
+		}
+
+		private void put(BlockingQueue<Runnable> queue, Runnable task) {
+			try {
+				queue.put(task);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted while waiting for queue space", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.receptor.commands.ActualLRPResponse;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * {@link EventListener} that conflates bursts of {@link ActualLRPChangedEvent}s before
+ * passing them to a delegate. The first change of an actual LRP instance opens a
+ * window; further changes of the same instance within that window are merged, and
+ * when the window closes the delegate receives a single event with the "before"
+ * state of the first change and the "after" state of the last one. The merged event
+ * carries the id of the last change.
+ * <p>
+ * Only change events are held back. Other events of the same instance, such as an
+ * {@link ActualLRPRemovedEvent} delivered to another listener, are not delayed and may
+ * be seen before a pending change; listeners that rely on the relative order of
+ * changes and removals should not be conflated.
+ * <p>
+ * A scheduler created by the listener is shut down by {@link #close()}; changes that
+ * are still pending are delivered when their windows close. Once the scheduler no
+ * longer accepts tasks, changes are delivered immediately.
+ */
+public class ConflatingActualLRPChangedListener implements EventListener<ActualLRPChangedEvent>, Closeable {
+
+	private static final Log logger = LogFactory.getLog(ConflatingActualLRPChangedListener.class);
+
+	private static final String BEFORE = "actual_lrp_before";
+
+	private static final String AFTER = "actual_lrp_after";
+
+	private final EventListener<ActualLRPChangedEvent> delegate;
+
+	private final long window;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final boolean ownsScheduler;
+
+	private final Map<String, Pending> pendingEvents = new HashMap<String, Pending>();
+
+	private final AtomicLong conflatedCount = new AtomicLong();
+
+	/**
+	 * @param delegate the listener to invoke with conflated events
+	 * @param window the number of milliseconds to collect changes of an instance
+	 */
+	public ConflatingActualLRPChangedListener(EventListener<ActualLRPChangedEvent> delegate, long window) {
+		this(delegate, window, Executors.newSingleThreadScheduledExecutor(conflaterThreadFactory()), true);
+	}
+
+	/**
+	 * @param delegate the listener to invoke with conflated events
+	 * @param window the number of milliseconds to collect changes of an instance
+	 * @param scheduler the scheduler on which the delegate is invoked when a window closes
+	 */
+	public ConflatingActualLRPChangedListener(EventListener<ActualLRPChangedEvent> delegate, long window, ScheduledExecutorService scheduler) {
+		this(delegate, window, scheduler, false);
+	}
+
+	private ConflatingActualLRPChangedListener(EventListener<ActualLRPChangedEvent> delegate, long window,
+			ScheduledExecutorService scheduler, boolean ownsScheduler) {
+		Assert.notNull(delegate, "delegate is required");
+		Assert.isTrue(window > 0, "window must be positive");
+		Assert.notNull(scheduler, "scheduler is required");
+		this.delegate = delegate;
+		this.window = window;
+		this.scheduler = scheduler;
+		this.ownsScheduler = ownsScheduler;
+	}
+
+	private static CustomizableThreadFactory conflaterThreadFactory() {
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("receptor-event-conflater-");
+		threadFactory.setDaemon(true);
+		return threadFactory;
+	}
+
+	@Override
+	public void onEvent(ActualLRPChangedEvent event) {
+		String key = event.getKey();
+		if (key == null) {
+			delegate.onEvent(event);
+			return;
+		}
+		synchronized (pendingEvents) {
+			Pending pending = pendingEvents.get(key);
+			if (pending != null) {
+				pending.last = event;
+				conflatedCount.incrementAndGet();
+				return;
+			}
+			pendingEvents.put(key, new Pending(event));
+		}
+		Flush flush = new Flush(key);
+		try {
+			scheduler.schedule(flush, window, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e) {
+			// closed, deliver without waiting
+			flush.run();
+		}
+	}
+
+	/**
+	 * @return the number of changes that were merged into a pending change
+	 */
+	public long getConflatedCount() {
+		return conflatedCount.get();
+	}
+
+	/**
+	 * Shut down the scheduler if it was created by this listener. A scheduler passed
+	 * to the constructor is left to its owner.
+	 */
+	@Override
+	public void close() {
+		if (ownsScheduler) {
+			scheduler.shutdown();
+		}
+	}
+
+	private static class Pending {
+
+		private final ActualLRPChangedEvent first;
+
+		private ActualLRPChangedEvent last;
+
+		private Pending(ActualLRPChangedEvent first) {
+			this.first = first;
+			this.last = first;
+		}
+
+		private ActualLRPChangedEvent merge() {
+			if (first == last) {
+				return first;
+			}
+			Map<String, ActualLRPResponse> data = new LinkedHashMap<String, ActualLRPResponse>();
+			data.put(BEFORE, first.getActualLRPBefore());
+			data.put(AFTER, last.getActualLRPAfter());
+			ActualLRPChangedEvent merged = new ActualLRPChangedEvent(last.getId());
+			merged.setData(data);
+			return merged;
+		}
+	}
+
+	private class Flush implements Runnable {
+
+		private final String key;
+
+		private Flush(String key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			Pending pending;
+			synchronized (pendingEvents) {
+				pending = pendingEvents.remove(key);
+			}
+			if (pending != null) {
+				try {
+					delegate.onEvent(pending.merge());
+				}
+				catch (RuntimeException e) {
+					logger.warn("Exception thrown by listener " + delegate, e);
+				}
+			}
+		}
+	}
+}
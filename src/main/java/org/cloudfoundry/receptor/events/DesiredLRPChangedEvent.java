@@ -36,4 +36,9 @@ public class DesiredLRPChangedEvent extends ReceptorEvent<DesiredLRPResponse> {
 	public DesiredLRPResponse getDesiredLRPAfter() {
 		return getData().get("desired_lrp_after");
 	}
+
+	@Override
+	public String getKey() {
+		return getKey("desired_lrp_after", false);
+	}
 }
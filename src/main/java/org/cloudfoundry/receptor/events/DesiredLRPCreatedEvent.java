@@ -28,4 +28,13 @@ public class DesiredLRPCreatedEvent extends ReceptorEvent<DesiredLRPResponse> {
 	public DesiredLRPCreatedEvent(int id) {
 		super(id, TYPE);
 	}
+
+	public DesiredLRPResponse getDesiredLRP() {
+		return getData().get("desired_lrp");
+	}
+
+	@Override
+	public String getKey() {
+		return getKey("desired_lrp", false);
+	}
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+/**
+ * How an {@link EventDispatcher} invokes a listener.
+ */
+public enum DispatchMode {
+
+	/**
+	 * Invoke the listener through the dispatching executor, the default.
+	 */
+	EXECUTOR,
+
+	/**
+	 * Invoke the listener on the thread reading the event stream, right after the event
+	 * is parsed. This avoids a handoff between threads, but the next event is not read
+	 * until the listener returns, so it is only suitable for listeners that are cheap
+	 * and never block. Listeners that take longer than the inline blocking threshold of
+	 * the dispatcher are logged.
+	 */
+	INLINE
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Collects the events for a {@link BatchEventListener} on the thread reading the
+ * event stream and hands complete batches to the dispatching executor. At most one
+ * task per listener is in flight at a time, so batches are delivered in order.
+ * The reading thread blocks when too many batches are waiting for delivery.
+ * <p>
+ * Linger timeouts of all batchers share one scheduler thread, so an expired batch is
+ * handed to the flusher, which may wait for room in the ready queue without holding
+ * up the timeouts of other listeners.
+ */
+class EventBatcher implements EventListener<ReceptorEvent<?>> {
+
+	private static final Log logger = LogFactory.getLog(EventBatcher.class);
+
+	static final int MAX_PENDING_BATCHES = 16;
+
+	private final BatchEventListener<?> listener;
+
+	private final int maxBatchSize;
+
+	private final long maxLinger;
+
+	private final Executor executor;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final Executor flusher;
+
+	private final Queue<List<ReceptorEvent<?>>> readyBatches = new ArrayDeque<List<ReceptorEvent<?>>>();
+
+	private List<ReceptorEvent<?>> batch;
+
+	private ScheduledFuture<?> lingerTimeout;
+
+	private boolean delivering;
+
+	EventBatcher(BatchEventListener<?> listener, int maxBatchSize, long maxLinger, Executor executor, ScheduledExecutorService scheduler,
+			Executor flusher) {
+		this.listener = listener;
+		this.maxBatchSize = maxBatchSize;
+		this.maxLinger = maxLinger;
+		this.executor = executor;
+		this.scheduler = scheduler;
+		this.flusher = flusher;
+	}
+
+	@Override
+	public void onEvent(ReceptorEvent<?> event) {
+		boolean deliver;
+		synchronized (this) {
+			if (batch == null) {
+				batch = new ArrayList<ReceptorEvent<?>>(maxBatchSize);
+				lingerTimeout = scheduler.schedule(new LingerTimeout(batch), maxLinger, TimeUnit.MILLISECONDS);
+			}
+			batch.add(event);
+			if (batch.size() < maxBatchSize) {
+				return;
+			}
+			deliver = enqueue();
+		}
+		if (deliver) {
+			startDelivery();
+		}
+	}
+
+	/**
+	 * Hand the current batch, if any, to the listener without waiting for it to fill up.
+	 */
+	void flush() {
+		List<ReceptorEvent<?>> current;
+		synchronized (this) {
+			current = batch;
+		}
+		if (current != null) {
+			flush(current);
+		}
+	}
+
+	private void flush(List<ReceptorEvent<?>> expectedBatch) {
+		boolean deliver;
+		synchronized (this) {
+			if (batch != expectedBatch) {
+				return;
+			}
+			deliver = enqueue();
+		}
+		if (deliver) {
+			startDelivery();
+		}
+	}
+
+	/**
+	 * Hand the current batch, if any, to the listener, waiting up to the given timeout
+	 * for room in the ready queue.
+	 *
+	 * @return whether there was no batch or it was handed over within the timeout
+	 */
+	boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		boolean deliver;
+		synchronized (this) {
+			while (batch != null && readyBatches.size() >= MAX_PENDING_BATCHES) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+			if (batch == null) {
+				return true;
+			}
+			deliver = enqueue();
+		}
+		if (deliver) {
+			startDelivery();
+		}
+		return true;
+	}
+
+	private void startDelivery() {
+		try {
+			executor.execute(new Delivery());
+		}
+		catch (RuntimeException e) {
+			synchronized (this) {
+				delivering = false;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Move the current batch to the ready queue, waiting for room if necessary.
+	 *
+	 * @return whether a delivery task needs to be started
+	 */
+	private boolean enqueue() {
+		while (readyBatches.size() >= MAX_PENDING_BATCHES) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		readyBatches.add(batch);
+		batch = null;
+		lingerTimeout.cancel(false);
+		lingerTimeout = null;
+		if (delivering) {
+			return false;
+		}
+		delivering = true;
+		return true;
+	}
+
+	/**
+	 * Hands an expired batch to the flusher, since flushing may wait for room in the
+	 * ready queue.
+	 */
+	private class LingerTimeout implements Runnable {
+
+		private final List<ReceptorEvent<?>> expectedBatch;
+
+		private LingerTimeout(List<ReceptorEvent<?>> expectedBatch) {
+			this.expectedBatch = expectedBatch;
+		}
+
+		@Override
+		public void run() {
+			flusher.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					flush(expectedBatch);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Drains the ready batches. Required, since the reader waits for room in the ready
+	 * queue that only a delivery can make.
+	 */
+	private class Delivery implements OrderedDispatchExecutor.OrderedTask, BoundedDispatchExecutor.RequiredTask {
+
+		@Override
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		public void run() {
+			while (true) {
+				List<ReceptorEvent<?>> events;
+				synchronized (EventBatcher.this) {
+					events = readyBatches.poll();
+					if (events == null) {
+						delivering = false;
+						return;
+					}
+					EventBatcher.this.notifyAll();
+				}
+				try {
+					((BatchEventListener) listener).onEvents(events);
+				}
+				catch (RuntimeException e) {
+					logger.warn("Exception thrown by batch listener " + listener, e);
+				}
+			}
+		}
+
+		@Override
+		public Object getOrderingKey() {
+			return listener;
+		}
+	}
+}
@@ -18,30 +18,36 @@ package org.cloudfoundry.receptor.events;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.LineNumberReader;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.receptor.commands.ActualLRPResponse;
 import org.cloudfoundry.receptor.commands.DesiredLRPResponse;
-import org.springframework.core.GenericTypeResolver;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.client.ClientHttpRequest;
 import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.util.Assert;
+import org.springframework.util.ReflectionUtils;
 import org.springframework.web.client.RequestCallback;
 import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestOperations;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 /**
  * @author Mark Fisher
@@ -50,106 +56,928 @@ public class EventDispatcher implements Runnable {
 
 	private static final Log logger = LogFactory.getLog(EventDispatcher.class);
 
-	private final String url;
+	static final String LAST_EVENT_ID_HEADER = "Last-Event-ID";
 
-	private final Executor backgroundExecutor;
+	private static final int NO_EVENT_ID = -1;
+
+	/**
+	 * The method of the response bodies of the HttpComponents client that shuts down
+	 * their connection without reading the rest of the body.
+	 */
+	private static final String ABORT_CONNECTION_METHOD = "abortConnection";
+
+	private final String[] urls;
+
+	/**
+	 * The index of the URL that is currently read.
+	 */
+	private volatile int endpoint;
+
+	private volatile long failoverCount;
+
+	/**
+	 * The id of the last event read before failing over, while no event has been read
+	 * from the new endpoint yet.
+	 */
+	private volatile int failedOverEventId = NO_EVENT_ID;
+
+	private volatile boolean failoverGapPending;
+
+	public static final long DEFAULT_CLOSE_TIMEOUT = 10000;
+
+	public static final long DEFAULT_INLINE_BLOCKING_THRESHOLD = 10;
+
+	private final ExecutorService backgroundExecutor;
 
 	private final Executor dispatchingExecutor;
 
-	private final Set<EventListener<?>> listeners = new CopyOnWriteArraySet<EventListener<?>>();
+	/**
+	 * The dispatching executor if it was created by this dispatcher, and is therefore shut down on close.
+	 */
+	private final BoundedDispatchExecutor ownedDispatchingExecutor;
+
+	private final EventListenerRegistry listenerRegistry = new EventListenerRegistry();
+
+	private final Set<EventGapListener> gapListeners = new CopyOnWriteArraySet<EventGapListener>();
+
+	private final Set<QuarantineListener> quarantineListeners = new CopyOnWriteArraySet<QuarantineListener>();
+
+	private volatile ListenerIsolationPolicy isolationPolicy;
+
+	private volatile long inlineBlockingThreshold = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INLINE_BLOCKING_THRESHOLD);
+
+	private volatile int lastEventId = NO_EVENT_ID;
+
+	private volatile ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+
+	/**
+	 * The reconnection time most recently sent by the server in a {@code retry} field.
+	 */
+	private volatile long retryInterval;
 
 	private final RestOperations restTemplate;
 
+	private final EventStreamParser parser = new EventStreamParser();
+
+	private final EventRingBuffer ringBuffer;
+
+	private ScheduledExecutorService batchScheduler;
+
+	private ExecutorService batchFlusher;
+
+	private final StreamWatchdog watchdog = new StreamWatchdog(new Runnable() {
+
+		@Override
+		public void run() {
+			abortStream();
+		}
+	});
+
+	private volatile ClientHttpResponse currentResponse;
+
+	private volatile InputStream currentBody;
+
+	private volatile boolean closed;
+
 	public EventDispatcher(String url, RestOperations restTemplate) {
-		Assert.hasText(url, "URL is required");
+		this(url, restTemplate, new BoundedDispatchExecutor(), null, true);
+	}
+
+	/**
+	 * Create a dispatcher that reads the event stream of the first URL, and fails over
+	 * to the next one in turn as soon as the stream it reads fails. Since event ids are assigned per endpoint, the last event id is not sent to
+	 * another endpoint. The Receptor does not replay events, so events emitted while
+	 * failing over may be missed: {@link EventGapListener}s are notified when the first
+	 * event is read after a failover.
+	 *
+	 * @param urls the URLs of the event streams of equivalent Receptors
+	 * @param restTemplate the RestOperations used to read the event streams
+	 */
+	public EventDispatcher(List<String> urls, RestOperations restTemplate) {
+		this(urls.toArray(new String[urls.size()]), restTemplate, new BoundedDispatchExecutor(), null, true);
+	}
+
+	/**
+	 * @param url the URL of the event stream
+	 * @param restTemplate the RestOperations used to read the event stream
+	 * @param dispatchingExecutor the Executor used to invoke listeners, e.g. a {@link BoundedDispatchExecutor}
+	 */
+	public EventDispatcher(String url, RestOperations restTemplate, Executor dispatchingExecutor) {
+		this(url, restTemplate, dispatchingExecutor, null, false);
+	}
+
+	/**
+	 * Create a dispatcher that hands events to listeners through the given ring buffer
+	 * rather than submitting a task per listener and event. The dispatching executor is
+	 * still used for batch deliveries and gap notifications.
+	 *
+	 * @param url the URL of the event stream
+	 * @param restTemplate the RestOperations used to read the event stream
+	 * @param ringBuffer the ring buffer to publish events to
+	 */
+	public EventDispatcher(String url, RestOperations restTemplate, EventRingBuffer ringBuffer) {
+		this(url, restTemplate, new BoundedDispatchExecutor(), ringBuffer, true);
+	}
+
+	private EventDispatcher(String url, RestOperations restTemplate, Executor dispatchingExecutor, EventRingBuffer ringBuffer,
+			boolean ownsDispatchingExecutor) {
+		this(new String[] { url }, restTemplate, dispatchingExecutor, ringBuffer, ownsDispatchingExecutor);
+	}
+
+	private EventDispatcher(String[] urls, RestOperations restTemplate, Executor dispatchingExecutor, EventRingBuffer ringBuffer,
+			boolean ownsDispatchingExecutor) {
+		Assert.notEmpty(urls, "URL is required");
+		for (String url : urls) {
+			Assert.hasText(url, "URL is required");
+		}
 		Assert.notNull(restTemplate, "RestTemplate is required");
-		this.url = url;
+		Assert.notNull(dispatchingExecutor, "Executor is required");
+		this.urls = urls;
 		this.restTemplate = restTemplate;
 		this.backgroundExecutor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("receptor-event-subscriber-"));
-		this.dispatchingExecutor = Executors.newCachedThreadPool(new CustomizableThreadFactory("receptor-event-dispatcher-"));
+		this.dispatchingExecutor = dispatchingExecutor;
+		this.ownedDispatchingExecutor = (ownsDispatchingExecutor ? (BoundedDispatchExecutor) dispatchingExecutor : null);
+		this.ringBuffer = ringBuffer;
 	}
 
 	public void addListener(EventListener<?> listener) {
-		if (listeners.isEmpty()) {
+		addListener(listener, null, DispatchMode.EXECUTOR);
+	}
+
+	/**
+	 * Add a listener that is only invoked for events matching the given filter. The
+	 * filter is evaluated before the event data is bound.
+	 *
+	 * @param listener the listener to invoke
+	 * @param filter the filter to apply, or {@code null} to receive all events
+	 */
+	public void addListener(EventListener<?> listener, EventFilter filter) {
+		addListener(listener, filter, DispatchMode.EXECUTOR);
+	}
+
+	/**
+	 * Add a listener that is invoked according to the given dispatch mode. With a ring
+	 * buffer, listeners are always invoked by its consumer threads.
+	 *
+	 * @param listener the listener to invoke
+	 * @param mode how to invoke the listener
+	 */
+	public void addListener(EventListener<?> listener, DispatchMode mode) {
+		addListener(listener, null, mode);
+	}
+
+	/**
+	 * Add a listener that is only invoked for events matching the given filter, according
+	 * to the given dispatch mode.
+	 *
+	 * @param listener the listener to invoke
+	 * @param filter the filter to apply, or {@code null} to receive all events
+	 * @param mode how to invoke the listener
+	 */
+	public void addListener(EventListener<?> listener, EventFilter filter, DispatchMode mode) {
+		Assert.notNull(mode, "DispatchMode is required");
+		addRegistration(new EventListenerRegistry.Registration(listener, listener, EventListener.class, filter,
+				mode == DispatchMode.INLINE));
+	}
+
+	/**
+	 * Add a listener that receives events in batches.
+	 *
+	 * @param listener the listener to invoke
+	 * @param maxBatchSize the maximum number of events per batch
+	 * @param maxLinger the maximum number of milliseconds to wait for a batch to fill up
+	 */
+	public void addBatchListener(BatchEventListener<?> listener, int maxBatchSize, long maxLinger) {
+		addBatchListener(listener, null, maxBatchSize, maxLinger);
+	}
+
+	/**
+	 * Add a listener that receives events matching the given filter in batches.
+	 *
+	 * @param listener the listener to invoke
+	 * @param filter the filter to apply, or {@code null} to receive all events
+	 * @param maxBatchSize the maximum number of events per batch
+	 * @param maxLinger the maximum number of milliseconds to wait for a batch to fill up
+	 */
+	public void addBatchListener(BatchEventListener<?> listener, EventFilter filter, int maxBatchSize, long maxLinger) {
+		Assert.notNull(listener, "BatchEventListener is required");
+		Assert.isTrue(maxBatchSize > 0, "maxBatchSize must be positive");
+		Assert.isTrue(maxLinger > 0, "maxLinger must be positive");
+		if (listenerRegistry.get(listener) != null) {
+			// already added, don't create a batcher that would never be registered
+			return;
+		}
+		EventBatcher batcher = new EventBatcher(listener, maxBatchSize, maxLinger, dispatchingExecutor, getBatchScheduler(),
+				getBatchFlusher());
+		addRegistration(new EventListenerRegistry.Registration(listener, batcher, BatchEventListener.class, filter, true));
+	}
+
+	/**
+	 * Remove a listener that was added with {@link #addListener(EventListener)} or
+	 * {@link #addBatchListener(BatchEventListener, int, long)}. When the last listener is
+	 * removed, the event stream is closed until another listener is added.
+	 *
+	 * @param listener the listener to remove
+	 * @return whether the listener had been added
+	 */
+	public boolean removeListener(Object listener) {
+		EventListenerRegistry.Registration registration = listenerRegistry.remove(listener);
+		if (registration == null) {
+			return false;
+		}
+		if (registration.listener instanceof EventBatcher) {
+			((EventBatcher) registration.listener).flush();
+		}
+		if (listenerRegistry.isEmpty()) {
+			abortStream();
+		}
+		return true;
+	}
+
+	private void addRegistration(EventListenerRegistry.Registration registration) {
+		Assert.state(!closed, "EventDispatcher has been closed");
+		if (listenerRegistry.add(registration)) {
+			if (ringBuffer != null) {
+				ringBuffer.start(listenerRegistry);
+			}
 			backgroundExecutor.execute(this);
 		}
-		this.listeners.add(listener);
+	}
+
+	private synchronized ScheduledExecutorService getBatchScheduler() {
+		if (batchScheduler == null) {
+			batchScheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("receptor-event-batcher-"));
+		}
+		return batchScheduler;
+	}
+
+	private synchronized Executor getBatchFlusher() {
+		if (batchFlusher == null) {
+			batchFlusher = Executors.newCachedThreadPool(new CustomizableThreadFactory("receptor-event-batch-flusher-"));
+		}
+		return batchFlusher;
+	}
+
+	/**
+	 * Close the event stream and stop all threads, waiting up to 10 seconds for
+	 * pending events to be dispatched.
+	 */
+	public void close() {
+		close(DEFAULT_CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Close the event stream and stop all threads, waiting up to the given timeout for
+	 * pending events to be dispatched. A dispatching executor that was passed in by the
+	 * caller is not shut down.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout
+	 * @return whether all pending events were dispatched within the timeout
+	 */
+	public boolean close(long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		closed = true;
+		abortStream();
+		backgroundExecutor.shutdownNow();
+		boolean drained = true;
+		try {
+			drained = backgroundExecutor.awaitTermination(remaining(deadline), TimeUnit.NANOSECONDS);
+			for (EventListenerRegistry.Registration registration : listenerRegistry.getAll()) {
+				if (registration.listener instanceof EventBatcher) {
+					drained &= ((EventBatcher) registration.listener).flush(remaining(deadline), TimeUnit.NANOSECONDS);
+				}
+			}
+			if (ringBuffer != null) {
+				drained &= ringBuffer.stop(remaining(deadline), TimeUnit.NANOSECONDS);
+			}
+			if (ownedDispatchingExecutor != null) {
+				ownedDispatchingExecutor.shutdown();
+				drained &= ownedDispatchingExecutor.awaitTermination(remaining(deadline), TimeUnit.NANOSECONDS);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			drained = false;
+		}
+		finally {
+			if (ownedDispatchingExecutor != null) {
+				ownedDispatchingExecutor.shutdownNow();
+			}
+			watchdog.shutdown();
+			synchronized (this) {
+				if (batchScheduler != null) {
+					batchScheduler.shutdownNow();
+				}
+				if (batchFlusher != null) {
+					batchFlusher.shutdownNow();
+				}
+			}
+		}
+		if (!drained) {
+			logger.warn("Timed out waiting for pending events to be dispatched.");
+		}
+		return drained;
+	}
+
+	private static long remaining(long deadline) {
+		return Math.max(0, deadline - System.nanoTime());
+	}
+
+	private boolean isStreaming() {
+		return (!closed && !listenerRegistry.isEmpty() && !Thread.currentThread().isInterrupted());
+	}
+
+	/**
+	 * Abort the event stream that is currently read without waiting for it. Closing a
+	 * response may first drain its body, which never ends for an event stream, so the
+	 * connection is aborted directly if the body supports it. Other responses are
+	 * closed on a separate thread; the streams of {@code HttpURLConnection} only close
+	 * once a pending read returns, at the latest when it times out.
+	 */
+	private void abortStream() {
+		final ClientHttpResponse response = this.currentResponse;
+		if (response == null || abortConnection(this.currentBody)) {
+			return;
+		}
+		Thread closer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					response.close();
+				}
+				catch (RuntimeException e) {
+					logger.debug("Exception while closing event stream.", e);
+				}
+			}
+		}, "receptor-event-stream-closer");
+		closer.setDaemon(true);
+		closer.start();
+	}
+
+	/**
+	 * Shut down the connection of a response body without reading the rest of it, if
+	 * the body supports it, as the bodies of the HttpComponents client do.
+	 *
+	 * @return whether the connection was aborted
+	 */
+	private static boolean abortConnection(InputStream body) {
+		Method abortMethod = (body != null ? ReflectionUtils.findMethod(body.getClass(), ABORT_CONNECTION_METHOD) : null);
+		if (abortMethod == null) {
+			return false;
+		}
+		try {
+			ReflectionUtils.makeAccessible(abortMethod);
+			ReflectionUtils.invokeMethod(abortMethod, body);
+			return true;
+		}
+		catch (RuntimeException e) {
+			logger.debug("Exception while aborting event stream connection.", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Set the time after which a connected event stream that has not delivered any data,
+	 * including comment heartbeats, is considered stalled. A stalled stream is closed and
+	 * reconnected from the last event id. The default of 0 disables stall detection.
+	 * <p>
+	 * The connections of the HttpComponents client are aborted right away. A read from
+	 * a {@code HttpURLConnection} cannot be cut short, so with the JDK client a read
+	 * timeout must also be set on the request factory for a stalled stream to end.
+	 *
+	 * @param idleTimeout the idle timeout in milliseconds
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		Assert.isTrue(idleTimeout >= 0, "idleTimeout must not be negative");
+		this.watchdog.setIdleTimeout(idleTimeout);
+	}
+
+	public long getIdleTimeout() {
+		return this.watchdog.getIdleTimeout();
+	}
+
+	/**
+	 * Add a {@link StreamStallListener} to be invoked when the event stream stalls and
+	 * when it resumes. Requires an idle timeout to be set.
+	 *
+	 * @param listener the listener to invoke
+	 */
+	public void addStallListener(StreamStallListener listener) {
+		this.watchdog.addListener(listener);
+	}
+
+	public boolean removeStallListener(StreamStallListener listener) {
+		return this.watchdog.removeListener(listener);
+	}
+
+	/**
+	 * @return the number of times the event stream was detected as stalled
+	 */
+	public long getStallCount() {
+		return this.watchdog.getStallCount();
+	}
+
+	/**
+	 * @return the duration in milliseconds of the most recent stall that has ended
+	 */
+	public long getLastStallDuration() {
+		return this.watchdog.getLastStallDuration();
+	}
+
+	/**
+	 * @return the total duration in milliseconds of all stalls that have ended
+	 */
+	public long getTotalStallTime() {
+		return this.watchdog.getTotalStallTime();
+	}
+
+	/**
+	 * @return the number of comment heartbeats received on the event stream
+	 */
+	public long getHeartbeatCount() {
+		return this.watchdog.getHeartbeatCount();
+	}
+
+	/**
+	 * Set the time above which an invocation of an {@link DispatchMode#INLINE} listener
+	 * is considered to block the thread reading the event stream and is logged. The
+	 * first such invocation of each listener is logged at warn level, later ones at
+	 * debug level. The default is 10 milliseconds.
+	 *
+	 * @param inlineBlockingThreshold the threshold in milliseconds
+	 */
+	public void setInlineBlockingThreshold(long inlineBlockingThreshold) {
+		Assert.isTrue(inlineBlockingThreshold > 0, "inlineBlockingThreshold must be positive");
+		this.inlineBlockingThreshold = TimeUnit.MILLISECONDS.toNanos(inlineBlockingThreshold);
+	}
+
+	/**
+	 * Isolate listeners from each other according to the given policy, or revert to
+	 * dispatching each event as a separate task if {@code null}. Latency, errors and
+	 * dropped events are accounted for every listener regardless of this setting. The
+	 * policy does not apply to inline listeners, nor to listeners of a ring buffer
+	 * beyond their accounting.
+	 *
+	 * @param isolationPolicy the policy to apply, or {@code null}
+	 */
+	public void setListenerIsolationPolicy(ListenerIsolationPolicy isolationPolicy) {
+		this.isolationPolicy = isolationPolicy;
+	}
+
+	public ListenerIsolationPolicy getListenerIsolationPolicy() {
+		return isolationPolicy;
+	}
+
+	/**
+	 * @param listener the listener as it was added
+	 * @return the statistics of the listener, or {@code null} if it has not been added
+	 */
+	public ListenerStats getListenerStats(Object listener) {
+		EventListenerRegistry.Registration registration = listenerRegistry.get(listener);
+		return (registration != null ? registration.stats : null);
+	}
+
+	/**
+	 * Add a {@link QuarantineListener} to be invoked when a listener is quarantined.
+	 *
+	 * @param listener the listener to invoke
+	 */
+	public void addQuarantineListener(QuarantineListener listener) {
+		this.quarantineListeners.add(listener);
+	}
+
+	public boolean removeQuarantineListener(QuarantineListener listener) {
+		return this.quarantineListeners.remove(listener);
+	}
+
+	/**
+	 * Resume delivering events to a quarantined listener.
+	 *
+	 * @param listener the listener as it was added
+	 * @return whether the listener was quarantined
+	 */
+	public boolean releaseQuarantine(Object listener) {
+		EventListenerRegistry.Registration registration = listenerRegistry.get(listener);
+		if (registration == null || !registration.stats.isQuarantined()) {
+			return false;
+		}
+		registration.stats.release();
+		return true;
+	}
+
+	/**
+	 * Add an {@link EventGapListener} to be invoked when the ids of consecutive events
+	 * are not contiguous, e.g. when a reconnect could not be resumed from the last event id.
+	 *
+	 * @param listener the listener to invoke
+	 */
+	public void addGapListener(EventGapListener listener) {
+		this.gapListeners.add(listener);
+	}
+
+	public boolean removeGapListener(EventGapListener listener) {
+		return this.gapListeners.remove(listener);
+	}
+
+	/**
+	 * Set the {@link ReconnectPolicy} that determines the delay between attempts to
+	 * (re)connect to the event stream.
+	 *
+	 * @param reconnectPolicy the policy to use
+	 */
+	public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+		Assert.notNull(reconnectPolicy, "ReconnectPolicy is required");
+		this.reconnectPolicy = reconnectPolicy;
+	}
+
+	public ReconnectPolicy getReconnectPolicy() {
+		return reconnectPolicy;
+	}
+
+	/**
+	 * @return the reconnection time in milliseconds most recently requested by the
+	 * server, which is the minimum delay before reconnecting, or 0 if none was sent
+	 */
+	public long getRetryInterval() {
+		return retryInterval;
+	}
+
+	public Executor getDispatchingExecutor() {
+		return dispatchingExecutor;
+	}
+
+	/**
+	 * @return the id of the last event read from the stream, or {@code null} if none has been read yet
+	 */
+	public Integer getLastEventId() {
+		int id = lastEventId;
+		return (id != NO_EVENT_ID ? id : null);
+	}
+
+	/**
+	 * Set the id sent as {@code Last-Event-ID} when the stream next connects, e.g. one
+	 * persisted before a restart. Gap listeners are notified if the next event read does
+	 * not follow it.
+	 *
+	 * @param lastEventId the id of the last event that was processed
+	 */
+	public void setLastEventId(int lastEventId) {
+		this.lastEventId = lastEventId;
+	}
+
+	/**
+	 * @return the URL of the event stream that is currently read
+	 */
+	public String getCurrentUrl() {
+		return urls[endpoint];
+	}
+
+	/**
+	 * @return the number of times the dispatcher failed over to another event stream
+	 */
+	public long getFailoverCount() {
+		return failoverCount;
 	}
 
 	@Override
 	public void run() {
-		RequestCallback requestCallback = new NoOpRequestCallback();
-		ResponseExtractor<?> responseExtractor = new EventResponseExtractor();
-		while (true) {
+		RequestCallback requestCallback = new LastEventIdRequestCallback();
+		EventResponseExtractor responseExtractor = new EventResponseExtractor();
+		while (isStreaming()) {
+			ReconnectPolicy policy = this.reconnectPolicy;
+			policy.beforeAttempt();
+			boolean failedOver = false;
 			try {
-				restTemplate.execute(url, HttpMethod.GET, requestCallback, responseExtractor);
+				responseExtractor.received = false;
+				restTemplate.execute(urls[endpoint], HttpMethod.GET, requestCallback, responseExtractor);
+				if (!responseExtractor.received && isStreaming()) {
+					throw new IOException("Event stream closed before any event or heartbeat was received");
+				}
 			}
 			catch (Exception e) {
-				logger.warn("Exception while reading event stream.", e);
+				if (!isStreaming()) {
+					break;
+				}
+				policy.onFailure();
+				if (policy.getConsecutiveFailures() == 1) {
+					logger.warn("Exception while reading event stream from " + urls[endpoint] + ".", e);
+				}
+				else if (logger.isDebugEnabled()) {
+					logger.debug("Exception while reading event stream from " + urls[endpoint] + " (" + policy + ").", e);
+				}
+				failedOver = failover(policy);
+			}
+			if (failedOver) {
+				continue;
+			}
+			long delay = Math.max(policy.nextDelay(), retryInterval);
+			if (policy.getState() == ReconnectPolicy.State.OPEN) {
+				logger.warn(String.format("Event stream unavailable after %d attempts, retrying in %d ms.",
+						policy.getConsecutiveFailures(), delay));
+			}
+			try {
+				Thread.sleep(delay);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
 		}
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	/**
+	 * Switch to the next URL after a failure. The first attempt on each other URL is
+	 * made without delay until every URL has failed in a row.
+	 *
+	 * @return whether to reconnect immediately
+	 */
+	private boolean failover(ReconnectPolicy policy) {
+		if (urls.length == 1) {
+			return false;
+		}
+		String failed = urls[endpoint];
+		endpoint = (endpoint + 1) % urls.length;
+		if (!failoverGapPending) {
+			failedOverEventId = lastEventId;
+			failoverGapPending = true;
+		}
+		lastEventId = NO_EVENT_ID;
+		failoverCount++;
+		logger.info(String.format("Failing over from event stream %s to %s.", failed, urls[endpoint]));
+		return (policy.getState() == ReconnectPolicy.State.CLOSED && policy.getConsecutiveFailures() < urls.length);
+	}
+
 	private void dispatchEvent(final ReceptorEvent<?> event) {
-		for (final EventListener listener : listeners) {
-			if (supportsEventType(listener, event)) {
-				dispatchingExecutor.execute(new Runnable() {
-					
-					@Override
-					public void run() {
-						listener.onEvent(event);						
+		if (ringBuffer != null) {
+			ringBuffer.publish(event);
+			return;
+		}
+		for (EventListenerRegistry.Registration registration : listenerRegistry.getRegistrations(event.getClass())) {
+			if (!registration.accepts(event)) {
+				continue;
+			}
+			ListenerIsolationPolicy policy = this.isolationPolicy;
+			if (registration.inline) {
+				deliver(registration, event);
+			}
+			else if (policy != null) {
+				queueFor(registration, policy).offer(event);
+			}
+			else {
+				dispatchingExecutor.execute(new ListenerTask(registration, event));
+			}
+		}
+	}
+
+	private void trackEventId(final int id) {
+		int previousId = lastEventId;
+		lastEventId = id;
+		if (failoverGapPending) {
+			failoverGapPending = false;
+			notifyGap(failedOverEventId, id);
+		}
+		else if (previousId != NO_EVENT_ID && id != previousId + 1) {
+			notifyGap(previousId, id);
+		}
+	}
+
+	private void notifyGap(int lastEventId, int nextEventId) {
+		for (EventGapListener listener : gapListeners) {
+			dispatchingExecutor.execute(new GapNotification(listener, lastEventId, nextEventId));
+		}
+	}
+
+	private ListenerQueue queueFor(EventListenerRegistry.Registration registration, ListenerIsolationPolicy policy) {
+		ListenerQueue queue = registration.queue;
+		if (queue == null) {
+			synchronized (registration) {
+				queue = registration.queue;
+				if (queue == null) {
+					queue = new ListenerQueue(this, registration, dispatchingExecutor, policy.getQueueCapacity());
+					registration.queue = queue;
+				}
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * Invoke a listener, accounting for its latency and exceptions, and quarantine it if
+	 * it exceeds the budgets of the isolation policy.
+	 */
+	void deliver(EventListenerRegistry.Registration registration, ReceptorEvent<?> event) {
+		ListenerIsolationPolicy policy = (registration.inline ? null : this.isolationPolicy);
+		try {
+			long latency = registration.invoke(event, (policy != null ? policy.getLatencyThreshold() : 0));
+			if (registration.inline && latency > inlineBlockingThreshold && !appliesBackpressure(registration)) {
+				warnInlineBlocking(registration, latency);
+			}
+		}
+		catch (RuntimeException e) {
+			logger.warn("Exception thrown by listener " + registration.target, e);
+		}
+		if (policy != null) {
+			String reason = policy.check(registration.stats);
+			if (reason != null && registration.stats.quarantine(reason)) {
+				ListenerQueue queue = registration.queue;
+				if (queue != null) {
+					queue.clear();
+				}
+				logger.warn(String.format("Quarantined listener %s: %s", registration.target, reason));
+				for (QuarantineListener listener : quarantineListeners) {
+					try {
+						listener.onQuarantined(registration.target, registration.stats);
 					}
-				});
+					catch (RuntimeException e) {
+						logger.warn("Exception thrown by quarantine listener " + listener, e);
+					}
+				}
 			}
 		}
 	}
 
-	private static boolean supportsEventType(EventListener<?> listener, ReceptorEvent<?> event) {
-		Class<?> declaredEventType = GenericTypeResolver.resolveTypeArgument(listener.getClass(), EventListener.class);
-		return (declaredEventType == null || declaredEventType.isAssignableFrom(event.getClass()));
+	/**
+	 * @return whether the listener blocks the reading thread on purpose when its consumer falls behind
+	 */
+	private static boolean appliesBackpressure(EventListenerRegistry.Registration registration) {
+		return (registration.listener instanceof EventBatcher || registration.listener instanceof EventPublisher.EventSubscription);
+	}
+
+	void suspendIdleTimeout() {
+		watchdog.suspend();
+	}
+
+	void resumeIdleTimeout() {
+		watchdog.resume();
+	}
+
+	private void warnInlineBlocking(EventListenerRegistry.Registration registration, long latency) {
+		String message = String.format("Inline listener %s blocked the event stream for %d ms; "
+				+ "listeners that may block should use DispatchMode.EXECUTOR.", registration.target,
+				TimeUnit.NANOSECONDS.toMillis(latency));
+		if (!registration.blockingReported) {
+			registration.blockingReported = true;
+			logger.warn(message);
+		}
+		else if (logger.isDebugEnabled()) {
+			logger.debug(message);
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	static void invokeListener(EventListener listener, ReceptorEvent<?> event) {
+		listener.onEvent(event);
 	}
 
-	private static class NoOpRequestCallback implements RequestCallback {
+	private class ListenerTask implements BoundedDispatchExecutor.ConflatableTask, OrderedDispatchExecutor.OrderedTask {
+
+		private final EventListenerRegistry.Registration registration;
+
+		private final ReceptorEvent<?> event;
+
+		private ListenerTask(EventListenerRegistry.Registration registration, ReceptorEvent<?> event) {
+			this.registration = registration;
+			this.event = event;
+		}
+
+		@Override
+		public void run() {
+			deliver(registration, event);
+		}
+
+		@Override
+		public Object getConflationKey() {
+			String key = event.getKey();
+			return (key != null ? Arrays.asList(registration.listener, event.getType(), key) : null);
+		}
+
+		@Override
+		public Object getOrderingKey() {
+			return event.getKey();
+		}
+	}
+
+	/**
+	 * Required, so that overflow policies never drop the signal to resynchronize.
+	 */
+	private static class GapNotification implements BoundedDispatchExecutor.RequiredTask {
+
+		private final EventGapListener listener;
+
+		private final int lastEventId;
+
+		private final int nextEventId;
+
+		private GapNotification(EventGapListener listener, int lastEventId, int nextEventId) {
+			this.listener = listener;
+			this.lastEventId = lastEventId;
+			this.nextEventId = nextEventId;
+		}
+
+		@Override
+		public void run() {
+			try {
+				listener.onGap(lastEventId, nextEventId);
+			}
+			catch (RuntimeException e) {
+				logger.warn("Exception thrown by gap listener " + listener, e);
+			}
+		}
+	}
+
+	private class LastEventIdRequestCallback implements RequestCallback {
 
 		@Override
 		public void doWithRequest(ClientHttpRequest request) throws IOException {
+			int id = lastEventId;
+			if (id != NO_EVENT_ID) {
+				request.getHeaders().set(LAST_EVENT_ID_HEADER, String.valueOf(id));
+			}
 		}
 	}
 
-	private class EventResponseExtractor implements ResponseExtractor<String> {
+	private class EventResponseExtractor implements ResponseExtractor<String>, EventStreamParser.EventHandler {
+
+		/**
+		 * Whether anything was read from the current connection. Only then does it count
+		 * as a success, so that a server that accepts connections and closes them right
+		 * away is backed off from like one that refuses them.
+		 */
+		private boolean received;
 
 		@Override
 		public String extractData(ClientHttpResponse response) throws IOException {
-			InputStream inputStream = response.getBody();
-			LineNumberReader reader = null;
+			InputStream body = response.getBody();
+			currentBody = body;
+			currentResponse = response;
+			InputStream inputStream = null;
 			try {
-				EventBuilder builder = null;
-				reader = new LineNumberReader(new InputStreamReader(inputStream));
-				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
-					if (line.startsWith("id:")) {
-						builder = EventBuilder.setId(Integer.parseInt(line.split(":")[1].trim()));
-					}
-					else if (line.startsWith("event:") && builder != null) {
-						builder = builder.setType(line.split(":", 2)[1].trim());
-					}
-					else if (line.startsWith("data:") && builder != null) {
-						dispatchEvent(((TypedEventBuilder<?, ?>) builder).setData(line.split(":", 2)[1].trim()));
-						builder = null;
-					}
+				if (isStreaming()) {
+					inputStream = watchdog.watch(body);
+					parser.parse(inputStream, this);
 				}
 			}
 			finally {
-				if (reader != null) {
-					reader.close();
+				currentResponse = null;
+				currentBody = null;
+				// closing the body would otherwise read the rest of an endless stream first
+				abortConnection(body);
+				if (inputStream != null) {
+					inputStream.close();
 				}
 			}
 			return null;
 		}
+
+		@Override
+		public void onEvent(int id, byte[] type, int typeLength, byte[] data, int dataLength) {
+			onReceived();
+			if (id == EventStreamParser.NO_ID) {
+				logger.debug("ignoring event without id");
+				return;
+			}
+			trackEventId(id);
+			TypedEventBuilder<?, ?> builder = EventBuilder.setId(id).setType(type, 0, typeLength);
+			if (builder != null) {
+				dispatchEvent(builder.setData(data, 0, dataLength));
+			}
+		}
+
+		@Override
+		public void onRetry(long retry) {
+			onReceived();
+			retryInterval = retry;
+		}
+
+		@Override
+		public void onComment() {
+			onReceived();
+			watchdog.onHeartbeat();
+		}
+
+		private void onReceived() {
+			if (!received) {
+				received = true;
+				reconnectPolicy.onSuccess();
+			}
+		}
 	}
 
 	private static class EventBuilder {
 
+		private static final String[] TYPES = { DesiredLRPCreatedEvent.TYPE, DesiredLRPChangedEvent.TYPE,
+				DesiredLRPRemovedEvent.TYPE, ActualLRPCreatedEvent.TYPE, ActualLRPChangedEvent.TYPE,
+				ActualLRPRemovedEvent.TYPE };
+
+		private static final byte[][] TYPE_BYTES = new byte[TYPES.length][];
+
+		static {
+			for (int i = 0; i < TYPES.length; i++) {
+				TYPE_BYTES[i] = EventStreamParser.ascii(TYPES[i]);
+			}
+		}
+
 		final int id;
 
 		private EventBuilder(int id) {
@@ -160,6 +988,15 @@ public class EventDispatcher implements Runnable {
 			return new EventBuilder(id);
 		}
 
+		<B extends TypedEventBuilder<?, ?>> B setType(byte[] buffer, int offset, int length) {
+			for (int i = 0; i < TYPES.length; i++) {
+				if (EventStreamParser.matches(TYPE_BYTES[i], buffer, offset, length)) {
+					return setType(TYPES[i]);
+				}
+			}
+			return setType(new String(buffer, offset, length, StandardCharsets.UTF_8));
+		}
+
 		@SuppressWarnings("unchecked")
 		<B extends TypedEventBuilder<?, ?>> B setType(String type) {
 			switch (type) {
@@ -185,26 +1022,24 @@ public class EventDispatcher implements Runnable {
 	private abstract static class TypedEventBuilder<E extends ReceptorEvent<D>, D> extends EventBuilder {
 	
 		static final ObjectMapper mapper = new ObjectMapper();
+
+		static final ObjectReader DESIRED_LRP_READER = mapper.readerFor(new TypeReference<Map<String, DesiredLRPResponse>>() {});
+
+		static final ObjectReader ACTUAL_LRP_READER = mapper.readerFor(new TypeReference<Map<String, ActualLRPResponse>>() {});
 	
 		private TypedEventBuilder(int id) {
 			super(id);
 		}
 	
-		@SuppressWarnings("unchecked")
-		E setData(String data) {
+		E setData(byte[] buffer, int offset, int length) {
 			E event = createEvent(id);
-			try {
-				event.setData((Map<String, D>) mapper.readValue(data, getTypeReference()));
-			}
-			catch (IOException e) {
-				logger.warn("failed to map event data", e);
-			}
+			event.setRawData(Arrays.copyOfRange(buffer, offset, offset + length), getReader());
 			return event;
 		}
 
 		abstract E createEvent(int id);
 
-		abstract TypeReference<?> getTypeReference();
+		abstract ObjectReader getReader();
 	}
 
 	private static class DesiredLRPCreatedEventBuilder extends TypedEventBuilder<DesiredLRPCreatedEvent, DesiredLRPResponse> {
@@ -219,8 +1054,8 @@ public class EventDispatcher implements Runnable {
 		}
 
 		@Override
-		TypeReference<?> getTypeReference() {
-			return new TypeReference<Map<String, DesiredLRPResponse>>() {};
+		ObjectReader getReader() {
+			return DESIRED_LRP_READER;
 		}
 	}
 
@@ -235,8 +1070,8 @@ public class EventDispatcher implements Runnable {
 		}
 
 		@Override
-		TypeReference<?> getTypeReference() {
-			return new TypeReference<Map<String, DesiredLRPResponse>>() {};
+		ObjectReader getReader() {
+			return DESIRED_LRP_READER;
 		}
 	}
 
@@ -252,8 +1087,8 @@ public class EventDispatcher implements Runnable {
 		}
 
 		@Override
-		TypeReference<?> getTypeReference() {
-			return new TypeReference<Map<String, DesiredLRPResponse>>() {};
+		ObjectReader getReader() {
+			return DESIRED_LRP_READER;
 		}
 	}
 	
@@ -269,8 +1104,8 @@ public class EventDispatcher implements Runnable {
 		}
 
 		@Override
-		TypeReference<?> getTypeReference() {
-			return new TypeReference<Map<String, ActualLRPResponse>>() {};
+		ObjectReader getReader() {
+			return ACTUAL_LRP_READER;
 		}
 	}
 	
@@ -286,8 +1121,8 @@ public class EventDispatcher implements Runnable {
 		}
 
 		@Override
-		TypeReference<?> getTypeReference() {
-			return new TypeReference<Map<String, ActualLRPResponse>>() {};
+		ObjectReader getReader() {
+			return ACTUAL_LRP_READER;
 		}
 	}
 	
@@ -303,8 +1138,8 @@ public class EventDispatcher implements Runnable {
 		}
 
 		@Override
-		TypeReference<?> getTypeReference() {
-			return new TypeReference<Map<String, ActualLRPResponse>>() {};
+		ObjectReader getReader() {
+			return ACTUAL_LRP_READER;
 		}
 	}
 }
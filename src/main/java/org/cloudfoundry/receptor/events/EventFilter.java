@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.receptor.commands.ActualLRPResponse;
+import org.cloudfoundry.receptor.commands.DesiredLRPResponse;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Filter on the fields of the LRPs an event refers to. An event matches if any LRP in
+ * its data (e.g. either the "before" or the "after" LRP of a change) matches every
+ * field that has been set. Fields that are not set match any value. Since desired
+ * LRPs have no cell id or state, filtering on either of these excludes desired LRP
+ * events.
+ * <p>
+ * Events read by the {@link EventDispatcher} are matched with a streaming scan of
+ * their raw JSON data, so events that do not match are never bound to objects.
+ */
+public class EventFilter {
+
+	private static final Log logger = LogFactory.getLog(EventFilter.class);
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private static final int DOMAIN = 0;
+
+	private static final int PROCESS_GUID = 1;
+
+	private static final int CELL_ID = 2;
+
+	private static final int STATE = 3;
+
+	private static final String[] FIELD_NAMES = { "domain", "process_guid", "cell_id", "state" };
+
+	private final String[] values = new String[FIELD_NAMES.length];
+
+	public String getDomain() {
+		return values[DOMAIN];
+	}
+
+	public void setDomain(String domain) {
+		this.values[DOMAIN] = domain;
+	}
+
+	public String getProcessGuid() {
+		return values[PROCESS_GUID];
+	}
+
+	public void setProcessGuid(String processGuid) {
+		this.values[PROCESS_GUID] = processGuid;
+	}
+
+	public String getCellId() {
+		return values[CELL_ID];
+	}
+
+	public void setCellId(String cellId) {
+		this.values[CELL_ID] = cellId;
+	}
+
+	public String getState() {
+		return values[STATE];
+	}
+
+	public void setState(String state) {
+		this.values[STATE] = state;
+	}
+
+	public boolean matches(ReceptorEvent<?> event) {
+		byte[] rawData = event.getRawData();
+		if (rawData != null) {
+			try {
+				return matches(rawData);
+			}
+			catch (IOException e) {
+				logger.warn("failed to scan event data", e);
+				return false;
+			}
+		}
+		Map<String, ?> data = event.getData();
+		if (data != null) {
+			for (Object lrp : data.values()) {
+				if (lrp instanceof ActualLRPResponse) {
+					ActualLRPResponse actualLRP = (ActualLRPResponse) lrp;
+					if (matches(actualLRP.getDomain(), actualLRP.getProcessGuid(), actualLRP.getCellId(), actualLRP.getState())) {
+						return true;
+					}
+				}
+				else if (lrp instanceof DesiredLRPResponse) {
+					DesiredLRPResponse desiredLRP = (DesiredLRPResponse) lrp;
+					if (matches(desiredLRP.getDomain(), desiredLRP.getProcessGuid(), null, null)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean matches(String... fields) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null && !values[i].equals(fields[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Scan the top level LRP objects of the raw event data, skipping nested values.
+	 */
+	private boolean matches(byte[] rawData) throws IOException {
+		JsonParser parser = jsonFactory.createParser(rawData);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return false;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				if (parser.nextToken() != JsonToken.START_OBJECT) {
+					parser.skipChildren();
+					continue;
+				}
+				if (matchesObject(parser)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		finally {
+			parser.close();
+		}
+	}
+
+	private boolean matchesObject(JsonParser parser) throws IOException {
+		boolean[] matched = new boolean[values.length];
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+				parser.skipChildren();
+				continue;
+			}
+			for (int i = 0; i < FIELD_NAMES.length; i++) {
+				if (values[i] != null && FIELD_NAMES[i].equals(name)) {
+					matched[i] = (token == JsonToken.VALUE_STRING && textEquals(parser, values[i]));
+				}
+			}
+		}
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null && !matched[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean textEquals(JsonParser parser, String value) throws IOException {
+		int length = parser.getTextLength();
+		if (length != value.length()) {
+			return false;
+		}
+		char[] text = parser.getTextCharacters();
+		int offset = parser.getTextOffset();
+		for (int i = 0; i < length; i++) {
+			if (text[offset + i] != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "EventFilter [domain=" + values[DOMAIN] + ", processGuid=" + values[PROCESS_GUID] + ", cellId="
+				+ values[CELL_ID] + ", state=" + values[STATE] + "]";
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+/**
+ * Callback invoked when one or more events may have been missed because the ids
+ * read from the event stream are not contiguous, or because the stream failed over
+ * to another Receptor.
+ */
+public interface EventGapListener {
+
+	/**
+	 * @param lastEventId the id of the last event read before the gap, or -1 if none
+	 * @param nextEventId the id of the first event read after the gap
+	 */
+	void onGap(int lastEventId, int nextEventId);
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.core.GenericTypeResolver;
+
+/**
+ * Holds the {@link EventListener}s of an {@link EventDispatcher}, indexed by event class.
+ * The event type of each listener is resolved once when it is added. The listeners
+ * for a given event class, including the wildcard listeners that accept any event,
+ * are computed on first use and cached until the registrations change, so that
+ * looking them up while dispatching is a single map access.
+ */
+class EventListenerRegistry {
+
+	private static final Registration[] NO_REGISTRATIONS = new Registration[0];
+
+	private final List<Registration> registrations = new ArrayList<Registration>();
+
+	private final ConcurrentMap<Class<?>, Registration[]> index = new ConcurrentHashMap<Class<?>, Registration[]>();
+
+	private int nextOrdinal;
+
+	/**
+	 * @return {@code true} if this is the first listener to be added
+	 */
+	synchronized boolean add(Registration registration) {
+		for (Registration existing : registrations) {
+			if (existing.target.equals(registration.target)) {
+				return false;
+			}
+		}
+		registration.ordinal = nextOrdinal++;
+		registrations.add(registration);
+		index.clear();
+		return (registrations.size() == 1);
+	}
+
+	/**
+	 * @return the removed registration, or {@code null} if the listener had not been added
+	 */
+	synchronized Registration remove(Object target) {
+		for (Iterator<Registration> iterator = registrations.iterator(); iterator.hasNext();) {
+			Registration registration = iterator.next();
+			if (registration.target.equals(target)) {
+				iterator.remove();
+				index.clear();
+				return registration;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the registration of the given listener, or {@code null} if it has not been added
+	 */
+	synchronized Registration get(Object target) {
+		for (Registration registration : registrations) {
+			if (registration.target.equals(target)) {
+				return registration;
+			}
+		}
+		return null;
+	}
+
+	synchronized Registration[] getAll() {
+		return registrations.toArray(new Registration[registrations.size()]);
+	}
+
+	synchronized boolean isEmpty() {
+		return registrations.isEmpty();
+	}
+
+	Registration[] getRegistrations(Class<?> eventType) {
+		Registration[] matching = index.get(eventType);
+		return (matching != null ? matching : resolve(eventType));
+	}
+
+	private synchronized Registration[] resolve(Class<?> eventType) {
+		Registration[] matching = index.get(eventType);
+		if (matching == null) {
+			List<Registration> list = new ArrayList<Registration>();
+			for (Registration registration : registrations) {
+				if (registration.supports(eventType)) {
+					list.add(registration);
+				}
+			}
+			matching = (list.isEmpty() ? NO_REGISTRATIONS : list.toArray(new Registration[list.size()]));
+			index.put(eventType, matching);
+		}
+		return matching;
+	}
+
+	static class Registration {
+
+		/**
+		 * The listener as it was added, e.g. an {@link EventListener} or a {@link BatchEventListener}.
+		 */
+		final Object target;
+
+		/**
+		 * The listener to invoke for each event.
+		 */
+		final EventListener<?> listener;
+
+		/**
+		 * The declared event type, or {@code null} for a wildcard listener.
+		 */
+		final Class<?> eventType;
+
+		/**
+		 * The filter to apply before dispatching, or {@code null} if none.
+		 */
+		final EventFilter filter;
+
+		/**
+		 * Whether the listener is invoked on the thread reading the event stream
+		 * rather than through the dispatching executor.
+		 */
+		final boolean inline;
+
+		/**
+		 * The latency, error and drop accounting of the listener.
+		 */
+		final ListenerStats stats = new ListenerStats();
+
+		/**
+		 * The position in which the listener was added.
+		 */
+		int ordinal;
+
+		/**
+		 * The queue of pending events if the listener is isolated, created on first use.
+		 */
+		volatile ListenerQueue queue;
+
+		/**
+		 * Whether an inline invocation that blocked the reading thread has been logged.
+		 */
+		volatile boolean blockingReported;
+
+		/**
+		 * @param target the listener as it was added
+		 * @param listener the listener to invoke for each event
+		 * @param listenerType the generic interface of the target that declares its event type
+		 * @param filter the filter to apply, or {@code null}
+		 * @param inline whether to invoke the listener on the reading thread
+		 */
+		Registration(Object target, EventListener<?> listener, Class<?> listenerType, EventFilter filter, boolean inline) {
+			this.target = target;
+			this.listener = listener;
+			this.filter = filter;
+			this.inline = inline;
+			Class<?> declaredEventType = GenericTypeResolver.resolveTypeArgument(target.getClass(), listenerType);
+			this.eventType = (ReceptorEvent.class.equals(declaredEventType) ? null : declaredEventType);
+		}
+
+		boolean supports(Class<?> eventType) {
+			return (this.eventType == null || this.eventType.isAssignableFrom(eventType));
+		}
+
+		/**
+		 * @return whether the event passes the filter; events for a quarantined listener
+		 * are rejected and counted as dropped
+		 */
+		boolean accepts(ReceptorEvent<?> event) {
+			if (this.filter != null && !this.filter.matches(event)) {
+				return false;
+			}
+			if (this.stats.isQuarantined()) {
+				this.stats.recordDropped(1);
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Invoke the listener, recording its latency and whether it threw an exception.
+		 *
+		 * @param event the event to deliver
+		 * @param slowThreshold the latency in nanoseconds above which the invocation is slow, or 0
+		 * @return the latency of the invocation in nanoseconds
+		 */
+		long invoke(ReceptorEvent<?> event, long slowThreshold) {
+			long start = System.nanoTime();
+			long latency;
+			boolean failed = true;
+			try {
+				EventDispatcher.invokeListener(this.listener, event);
+				failed = false;
+			}
+			finally {
+				latency = System.nanoTime() - start;
+				this.stats.recordInvocation(latency, failed, slowThreshold);
+			}
+			return latency;
+		}
+	}
+}
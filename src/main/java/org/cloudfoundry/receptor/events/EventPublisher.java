@@ -0,0 +1,272 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.util.Assert;
+
+/**
+ * Reactive Streams {@link Publisher} of the events of an {@link EventDispatcher}.
+ * Each subscriber has a bounded buffer that is filled by the thread reading the
+ * event stream and drained by the dispatching executor as the subscriber signals
+ * demand. When a buffer is full, reading of the event stream pauses until the
+ * subscriber requests more events, so that the server is slowed down through TCP
+ * flow control rather than events piling up in memory. A subscriber that does not
+ * request events therefore also holds up every other listener of the dispatcher.
+ * The idle timeout of the dispatcher does not apply while reading is paused.
+ */
+public class EventPublisher implements Publisher<ReceptorEvent<?>> {
+
+	private static final Log logger = LogFactory.getLog(EventPublisher.class);
+
+	public static final int DEFAULT_BUFFER_SIZE = 256;
+
+	private final EventDispatcher dispatcher;
+
+	private final int bufferSize;
+
+	private final Set<EventSubscription> subscriptions = new CopyOnWriteArraySet<EventSubscription>();
+
+	private volatile boolean completed;
+
+	public EventPublisher(EventDispatcher dispatcher) {
+		this(dispatcher, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param dispatcher the dispatcher providing the events
+	 * @param bufferSize the maximum number of events buffered per subscriber
+	 */
+	public EventPublisher(EventDispatcher dispatcher, int bufferSize) {
+		Assert.notNull(dispatcher, "EventDispatcher is required");
+		Assert.isTrue(bufferSize > 0, "bufferSize must be positive");
+		this.dispatcher = dispatcher;
+		this.bufferSize = bufferSize;
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super ReceptorEvent<?>> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException("Subscriber is required");
+		}
+		EventSubscription subscription = new EventSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+		if (completed) {
+			subscription.complete();
+			return;
+		}
+		subscriptions.add(subscription);
+		try {
+			dispatcher.addListener(subscription, DispatchMode.INLINE);
+		}
+		catch (IllegalStateException e) {
+			subscriptions.remove(subscription);
+			subscription.fail(e);
+		}
+	}
+
+	/**
+	 * Stop publishing events, completing every subscription once the events already
+	 * buffered for it have been delivered.
+	 */
+	public void complete() {
+		completed = true;
+		for (EventSubscription subscription : subscriptions) {
+			subscription.complete();
+		}
+	}
+
+	/**
+	 * Subscription that buffers events and drains them to its subscriber as a required
+	 * task, since the reader waits for the drain when the buffer is full.
+	 */
+	class EventSubscription implements Subscription, EventListener<ReceptorEvent<?>>, BoundedDispatchExecutor.RequiredTask {
+
+		private final Subscriber<? super ReceptorEvent<?>> subscriber;
+
+		private final Executor executor = dispatcher.getDispatchingExecutor();
+
+		private final ArrayDeque<ReceptorEvent<?>> buffer = new ArrayDeque<ReceptorEvent<?>>();
+
+		private long requested;
+
+		private boolean scheduled;
+
+		private boolean done;
+
+		private boolean terminated;
+
+		private Throwable error;
+
+		private EventSubscription(Subscriber<? super ReceptorEvent<?>> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		/**
+		 * Invoked on the thread reading the event stream, which waits while the buffer is full.
+		 */
+		@Override
+		public void onEvent(ReceptorEvent<?> event) {
+			synchronized (this) {
+				if (buffer.size() >= bufferSize && !done) {
+					dispatcher.suspendIdleTimeout();
+					try {
+						while (buffer.size() >= bufferSize && !done) {
+							wait();
+						}
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					finally {
+						dispatcher.resumeIdleTimeout();
+					}
+				}
+				if (done) {
+					return;
+				}
+				buffer.add(event);
+			}
+			schedule();
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				fail(new IllegalArgumentException("Requested number of events must be positive, see rule 3.9"));
+				return;
+			}
+			synchronized (this) {
+				requested = (requested + n < 0 ? Long.MAX_VALUE : requested + n);
+			}
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (this) {
+				done = true;
+				terminated = true;
+				buffer.clear();
+				notifyAll();
+			}
+			release();
+		}
+
+		void complete() {
+			synchronized (this) {
+				done = true;
+				notifyAll();
+			}
+			release();
+			schedule();
+		}
+
+		void fail(Throwable error) {
+			synchronized (this) {
+				done = true;
+				buffer.clear();
+				this.error = error;
+				notifyAll();
+			}
+			release();
+			schedule();
+		}
+
+		private void release() {
+			subscriptions.remove(this);
+			dispatcher.removeListener(this);
+		}
+
+		private void schedule() {
+			synchronized (this) {
+				if (scheduled || terminated) {
+					return;
+				}
+				scheduled = true;
+			}
+			try {
+				executor.execute(this);
+			}
+			catch (RuntimeException e) {
+				synchronized (this) {
+					scheduled = false;
+				}
+				throw e;
+			}
+		}
+
+		/**
+		 * Deliver buffered events while there is demand, and the terminal signal once
+		 * the buffer is exhausted.
+		 */
+		@Override
+		public void run() {
+			while (true) {
+				ReceptorEvent<?> event = null;
+				boolean signalTermination = false;
+				synchronized (this) {
+					if (terminated) {
+						scheduled = false;
+						return;
+					}
+					if (requested > 0 && !buffer.isEmpty()) {
+						event = buffer.poll();
+						if (requested != Long.MAX_VALUE) {
+							requested--;
+						}
+						notifyAll();
+					}
+					else if (done && buffer.isEmpty()) {
+						terminated = true;
+						signalTermination = true;
+					}
+					else {
+						scheduled = false;
+						return;
+					}
+				}
+				if (signalTermination) {
+					if (error != null) {
+						subscriber.onError(error);
+					}
+					else {
+						subscriber.onComplete();
+					}
+					return;
+				}
+				try {
+					subscriber.onNext(event);
+				}
+				catch (RuntimeException e) {
+					logger.warn("Exception thrown by subscriber " + subscriber + ", cancelling its subscription", e);
+					cancel();
+				}
+			}
+		}
+	}
+}
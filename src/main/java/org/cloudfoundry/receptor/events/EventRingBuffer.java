@@ -0,0 +1,317 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Single-producer, multi-consumer ring buffer between the thread reading the event
+ * stream and the listeners. Each event is published once into a preallocated slot,
+ * and each consumer thread follows the published sequence on its own, invoking the
+ * group of listeners assigned to it. Listeners are assigned to groups round-robin
+ * in the order they are added, and every listener receives events in stream order.
+ * A slot is cleared once every consumer has processed its event.
+ * <p>
+ * Publishing is lock-free. A consumer that has caught up spins briefly and then
+ * blocks until the next event is published. When the slowest consumer is a full ring
+ * behind, the reading thread waits for it to catch up, which in turn applies
+ * backpressure to the event stream. A consumer whose thread dies from an exception
+ * thrown by a listener skips the event that failed and is restarted on a new thread.
+ */
+public class EventRingBuffer {
+
+	private static final Log logger = LogFactory.getLog(EventRingBuffer.class);
+
+	public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+	private static final int SPIN_TRIES = 100;
+
+	private static final long PARK_NANOS = 100000;
+
+	private final ReceptorEvent<?>[] slots;
+
+	/**
+	 * The number of consumers that have yet to process the event in each slot.
+	 */
+	private final AtomicIntegerArray unprocessed;
+
+	private final int mask;
+
+	private final AtomicLong cursor = new AtomicLong(-1);
+
+	private final Consumer[] consumers;
+
+	private final Object signal = new Object();
+
+	/**
+	 * The number of consumers blocked on the signal, only modified while holding it.
+	 */
+	private volatile int waitingConsumers;
+
+	private final ThreadFactory threadFactory = new CustomizableThreadFactory("receptor-event-consumer-");
+
+	private EventListenerRegistry registry;
+
+	private volatile boolean stopping;
+
+	public EventRingBuffer() {
+		this(DEFAULT_BUFFER_SIZE, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param bufferSize the number of slots, must be a power of 2
+	 * @param consumerGroups the number of consumer threads the listeners are spread across
+	 */
+	public EventRingBuffer(int bufferSize, int consumerGroups) {
+		Assert.isTrue(bufferSize > 0 && Integer.bitCount(bufferSize) == 1, "bufferSize must be a power of 2");
+		Assert.isTrue(consumerGroups > 0, "consumerGroups must be positive");
+		this.slots = new ReceptorEvent<?>[bufferSize];
+		this.unprocessed = new AtomicIntegerArray(bufferSize);
+		this.mask = bufferSize - 1;
+		this.consumers = new Consumer[consumerGroups];
+		for (int i = 0; i < consumerGroups; i++) {
+			this.consumers[i] = new Consumer(i);
+		}
+	}
+
+	/**
+	 * @return the sequence of the last published event, or -1 if none
+	 */
+	public long getCursor() {
+		return cursor.get();
+	}
+
+	/**
+	 * @return the number of published events the slowest consumer has not processed yet
+	 */
+	public long getBacklog() {
+		return cursor.get() - minimumSequence();
+	}
+
+	/**
+	 * Start the consumer threads, reading listeners from the given registry.
+	 */
+	synchronized void start(EventListenerRegistry registry) {
+		if (this.registry != null) {
+			return;
+		}
+		this.registry = registry;
+		for (Consumer consumer : consumers) {
+			consumer.start();
+		}
+	}
+
+	/**
+	 * Stop the consumer threads once they have processed all published events, and
+	 * interrupt them if they have not done so within the timeout. No events may be
+	 * published after this method has been invoked.
+	 *
+	 * @return whether all published events were processed within the timeout
+	 */
+	synchronized boolean stop(long timeout, TimeUnit unit) throws InterruptedException {
+		stopping = true;
+		synchronized (signal) {
+			signal.notifyAll();
+		}
+		if (registry == null) {
+			return true;
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		boolean drained = true;
+		for (Consumer consumer : consumers) {
+			Thread thread;
+			do {
+				thread = consumer.thread;
+				long remaining = deadline - System.nanoTime();
+				if (remaining > 0) {
+					TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
+				}
+			}
+			// a consumer may have been restarted while stopping
+			while (consumer.thread != thread);
+			if (thread.isAlive()) {
+				thread.interrupt();
+				drained = false;
+			}
+		}
+		return drained;
+	}
+
+	/**
+	 * Publish an event, waiting for the slowest consumer if the ring is full.
+	 * Must only be invoked by a single thread.
+	 *
+	 * @throws RejectedExecutionException if interrupted while waiting for the slowest
+	 * consumer, in which case the event is not published
+	 */
+	void publish(ReceptorEvent<?> event) {
+		long next = cursor.get() + 1;
+		long wrapPoint = next - slots.length;
+		while (minimumSequence() < wrapPoint) {
+			LockSupport.parkNanos(PARK_NANOS);
+			if (Thread.currentThread().isInterrupted()) {
+				throw new RejectedExecutionException("Interrupted while waiting for a free slot");
+			}
+			restartDeadConsumers();
+		}
+		int index = (int) next & mask;
+		unprocessed.set(index, consumers.length);
+		slots[index] = event;
+		cursor.set(next);
+		if (waitingConsumers > 0) {
+			synchronized (signal) {
+				signal.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Restart consumers whose thread ended without the ring buffer being stopped,
+	 * e.g. because it was interrupted, so that the publisher does not wait for them
+	 * forever.
+	 */
+	private void restartDeadConsumers() {
+		for (Consumer consumer : consumers) {
+			if (!stopping && consumer.thread != null && !consumer.thread.isAlive()) {
+				logger.error("Event consumer " + consumer.group + " has terminated, restarting it on a new thread");
+				consumer.start();
+			}
+		}
+	}
+
+	private long minimumSequence() {
+		long minimum = Long.MAX_VALUE;
+		for (Consumer consumer : consumers) {
+			minimum = Math.min(minimum, consumer.sequence.get());
+		}
+		return minimum;
+	}
+
+	/**
+	 * Count an event as processed by one more consumer, clearing its slot once it has
+	 * been processed by all of them.
+	 */
+	private void release(long sequence) {
+		int index = (int) sequence & mask;
+		if (unprocessed.decrementAndGet(index) == 0) {
+			slots[index] = null;
+		}
+	}
+
+	private class Consumer implements Runnable {
+
+		private final int group;
+
+		private final AtomicLong sequence = new AtomicLong(-1);
+
+		private volatile Thread thread;
+
+		private Consumer(int group) {
+			this.group = group;
+		}
+
+		private void start() {
+			Thread thread = threadFactory.newThread(this);
+			// started first, so that the publisher does not take it for a dead thread
+			thread.start();
+			this.thread = thread;
+		}
+
+		@Override
+		public void run() {
+			long next = sequence.get() + 1;
+			try {
+				int idle = 0;
+				while (!Thread.currentThread().isInterrupted()) {
+					long available = cursor.get();
+					if (available < next) {
+						if (stopping) {
+							return;
+						}
+						if (++idle > SPIN_TRIES) {
+							awaitPublished(next);
+						}
+						else {
+							Thread.yield();
+						}
+						continue;
+					}
+					idle = 0;
+					for (; next <= available; next++) {
+						process(slots[(int) next & mask]);
+						release(next);
+					}
+					sequence.set(available);
+				}
+			}
+			catch (Throwable e) {
+				// skip the event that failed, so that the new thread does not fail on it again
+				release(next);
+				sequence.set(next);
+				if (stopping) {
+					logger.error("Event consumer " + group + " failed while stopping", e);
+				}
+				else {
+					logger.error("Event consumer " + group + " failed, restarting it on a new thread", e);
+					start();
+				}
+			}
+		}
+
+		private void awaitPublished(long next) {
+			synchronized (signal) {
+				waitingConsumers++;
+				try {
+					while (cursor.get() < next && !stopping) {
+						signal.wait();
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				finally {
+					waitingConsumers--;
+				}
+			}
+		}
+		private void process(ReceptorEvent<?> event) {
+			for (EventListenerRegistry.Registration registration : registry.getRegistrations(event.getClass())) {
+				if (registration.ordinal % consumers.length != group) {
+					continue;
+				}
+				try {
+					if (registration.accepts(event)) {
+						registration.invoke(event, 0);
+					}
+				}
+				catch (RuntimeException e) {
+					logger.warn("Exception thrown by listener " + registration.target, e);
+				}
+			}
+		}
+	}
+}
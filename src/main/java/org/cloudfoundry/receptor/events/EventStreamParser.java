@@ -0,0 +1,324 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Parser for the server-sent event framing of the Receptor event stream. Lines are
+ * scanned directly in a reusable byte buffer and field names are matched as bytes.
+ * Lines may be terminated by CRLF, LF or CR. The fields of an event are accumulated
+ * until the blank line that terminates it: multiple {@code data} fields are joined
+ * with a newline into a reusable data buffer, and {@code id} and {@code event}
+ * fields apply to the event they appear in. {@code retry} fields and comment lines
+ * are reported as they are read. An event whose data would exceed the maximum event
+ * size is discarded rather than growing the buffers without bound, as is an
+ * unterminated event at the end of the stream.
+ * <p>
+ * The buffers passed to the {@link EventHandler} are only valid for the duration of
+ * the callback. An instance is not thread-safe and may be reused for successive
+ * streams.
+ */
+class EventStreamParser {
+
+	private static final Log logger = LogFactory.getLog(EventStreamParser.class);
+
+	static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	static final int DEFAULT_MAX_EVENT_SIZE = 16 * 1024 * 1024;
+
+	static final int NO_ID = -1;
+
+	private static final byte[] ID = ascii("id");
+
+	private static final byte[] EVENT = ascii("event");
+
+	private static final byte[] DATA = ascii("data");
+
+	private static final byte[] RETRY = ascii("retry");
+
+	private final int maxEventSize;
+
+	private byte[] buffer;
+
+	private int position;
+
+	private int limit;
+
+	private boolean skipLineFeed;
+
+	private boolean skipLine;
+
+	private byte[] data;
+
+	private int dataLength;
+
+	private boolean hasData;
+
+	private byte[] type = new byte[32];
+
+	private int typeLength;
+
+	private int id;
+
+	private boolean oversized;
+
+	EventStreamParser() {
+		this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_EVENT_SIZE);
+	}
+
+	EventStreamParser(int bufferSize) {
+		this(bufferSize, DEFAULT_MAX_EVENT_SIZE);
+	}
+
+	/**
+	 * @param bufferSize the initial size of the line and data buffers
+	 * @param maxEventSize the maximum size of a line or of the data of an event
+	 */
+	EventStreamParser(int bufferSize, int maxEventSize) {
+		this.buffer = new byte[bufferSize];
+		this.data = new byte[bufferSize];
+		this.maxEventSize = maxEventSize;
+	}
+
+	/**
+	 * Read the given stream until it is exhausted, invoking the handler for each
+	 * complete event.
+	 */
+	void parse(InputStream inputStream, EventHandler handler) throws IOException {
+		position = 0;
+		limit = 0;
+		skipLineFeed = false;
+		skipLine = false;
+		resetEvent();
+		int scanFrom = 0;
+		while (true) {
+			if (skipLineFeed && position < limit) {
+				skipLineFeed = false;
+				if (buffer[position] == '\n') {
+					position++;
+					scanFrom = position;
+				}
+			}
+			int eol = indexOfLineEnd(scanFrom, limit);
+			if (eol < 0) {
+				if (limit - position >= maxEventSize) {
+					if (!skipLine) {
+						logger.warn(String.format("Discarding event with a line longer than %d bytes.", maxEventSize));
+					}
+					skipLine = true;
+					oversized = true;
+					position = limit;
+				}
+				scanFrom = limit - position;
+				if (!fill(inputStream)) {
+					return;
+				}
+				continue;
+			}
+			if (skipLine) {
+				skipLine = false;
+			}
+			else {
+				processLine(position, eol, handler);
+			}
+			skipLineFeed = (buffer[eol] == '\r');
+			position = eol + 1;
+			scanFrom = position;
+		}
+	}
+
+	private boolean fill(InputStream inputStream) throws IOException {
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+		if (limit == buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		int read = inputStream.read(buffer, limit, buffer.length - limit);
+		if (read < 0) {
+			return false;
+		}
+		limit += read;
+		return true;
+	}
+
+	private void processLine(int start, int end, EventHandler handler) {
+		if (start == end) {
+			dispatch(handler);
+			return;
+		}
+		int colon = indexOf((byte) ':', start, end);
+		if (colon == start) {
+			handler.onComment();
+			return;
+		}
+		int nameEnd = (colon < 0 ? end : colon);
+		int valueStart = (colon < 0 ? end : colon + 1);
+		if (valueStart < end && buffer[valueStart] == ' ') {
+			valueStart++;
+		}
+		if (matches(DATA, buffer, start, nameEnd - start)) {
+			appendData(valueStart, end);
+		}
+		else if (matches(ID, buffer, start, nameEnd - start)) {
+			int id = parseNumber(valueStart, end, Integer.MAX_VALUE);
+			if (id >= 0) {
+				this.id = id;
+			}
+			else {
+				logger.warn("invalid event id: " + new String(buffer, valueStart, end - valueStart, StandardCharsets.UTF_8));
+			}
+		}
+		else if (matches(EVENT, buffer, start, nameEnd - start)) {
+			if (type.length < end - valueStart) {
+				type = new byte[end - valueStart];
+			}
+			System.arraycopy(buffer, valueStart, type, 0, end - valueStart);
+			typeLength = end - valueStart;
+		}
+		else if (matches(RETRY, buffer, start, nameEnd - start)) {
+			int retry = parseNumber(valueStart, end, Integer.MAX_VALUE);
+			if (retry >= 0) {
+				handler.onRetry(retry);
+			}
+		}
+	}
+
+	private void appendData(int start, int end) {
+		if (oversized) {
+			return;
+		}
+		int length = end - start;
+		int required = dataLength + (hasData ? 1 : 0) + length;
+		if (required > maxEventSize) {
+			logger.warn(String.format("Discarding event with data longer than %d bytes.", maxEventSize));
+			oversized = true;
+			return;
+		}
+		if (required > data.length) {
+			data = Arrays.copyOf(data, Math.min(maxEventSize, Math.max(required, data.length * 2)));
+		}
+		if (hasData) {
+			data[dataLength++] = '\n';
+		}
+		System.arraycopy(buffer, start, data, dataLength, length);
+		dataLength += length;
+		hasData = true;
+	}
+
+	private void dispatch(EventHandler handler) {
+		if (hasData && !oversized) {
+			handler.onEvent(id, type, typeLength, data, dataLength);
+		}
+		resetEvent();
+	}
+
+	private void resetEvent() {
+		dataLength = 0;
+		hasData = false;
+		typeLength = 0;
+		id = NO_ID;
+		oversized = false;
+	}
+
+	private int parseNumber(int start, int end, int max) {
+		if (start == end || end - start > 10) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = buffer[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return (value > max ? -1 : (int) value);
+	}
+
+	private int indexOfLineEnd(int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buffer[i] == '\n' || buffer[i] == '\r') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int indexOf(byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buffer[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static boolean matches(byte[] expected, byte[] buffer, int offset, int length) {
+		if (expected.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (expected[i] != buffer[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Callback for the events of an event stream.
+	 */
+	interface EventHandler {
+
+		/**
+		 * Invoked for each event that has data.
+		 *
+		 * @param id the id of the event, or {@link EventStreamParser#NO_ID} if it had none
+		 * @param type buffer holding the event type, which is empty if it had none
+		 * @param typeLength the length of the event type
+		 * @param data buffer holding the data lines of the event joined by newlines
+		 * @param dataLength the length of the data
+		 */
+		void onEvent(int id, byte[] type, int typeLength, byte[] data, int dataLength);
+
+		/**
+		 * Invoked for a valid {@code retry} field.
+		 *
+		 * @param retry the reconnection time in milliseconds
+		 */
+		void onRetry(long retry);
+
+		/**
+		 * Invoked for comment lines, which servers send as heartbeats.
+		 */
+		void onComment();
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import org.springframework.util.Assert;
+
+/**
+ * Isolates the listeners of an {@link EventDispatcher} from each other. Each listener
+ * gets its own bounded queue, which is drained by at most one thread of the
+ * dispatching executor at a time, so a slow listener can neither occupy more than
+ * one dispatching thread nor delay the events of other listeners. When a listener's
+ * queue is full its oldest pending event is dropped. A listener that is slower than
+ * the latency budget, or that throws, for too many consecutive invocations is
+ * quarantined: its pending events are dropped and it receives no further events
+ * until it is released.
+ */
+public class ListenerIsolationPolicy {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+	public static final long DEFAULT_LATENCY_BUDGET = 1000;
+
+	public static final int DEFAULT_MAX_SLOW_INVOCATIONS = 10;
+
+	public static final int DEFAULT_MAX_ERRORS = 10;
+
+	private final int queueCapacity;
+
+	private final long latencyBudget;
+
+	private final int maxSlowInvocations;
+
+	private final int maxErrors;
+
+	public ListenerIsolationPolicy() {
+		this(DEFAULT_QUEUE_CAPACITY, DEFAULT_LATENCY_BUDGET, DEFAULT_MAX_SLOW_INVOCATIONS, DEFAULT_MAX_ERRORS);
+	}
+
+	/**
+	 * @param queueCapacity the maximum number of pending events per listener
+	 * @param latencyBudget the time in milliseconds above which an invocation is slow
+	 * @param maxSlowInvocations consecutive slow invocations that quarantine a listener
+	 * @param maxErrors consecutive invocations throwing an exception that quarantine a listener
+	 */
+	public ListenerIsolationPolicy(int queueCapacity, long latencyBudget, int maxSlowInvocations, int maxErrors) {
+		Assert.isTrue(queueCapacity > 0, "queueCapacity must be positive");
+		Assert.isTrue(latencyBudget > 0, "latencyBudget must be positive");
+		Assert.isTrue(maxSlowInvocations > 0, "maxSlowInvocations must be positive");
+		Assert.isTrue(maxErrors > 0, "maxErrors must be positive");
+		this.queueCapacity = queueCapacity;
+		this.latencyBudget = latencyBudget;
+		this.maxSlowInvocations = maxSlowInvocations;
+		this.maxErrors = maxErrors;
+	}
+
+	int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @return the latency budget in nanoseconds
+	 */
+	long getLatencyThreshold() {
+		return latencyBudget * 1000000;
+	}
+
+	/**
+	 * @return why the listener with the given statistics must be quarantined, or
+	 * {@code null} if it is within its budgets
+	 */
+	String check(ListenerStats stats) {
+		if (stats.getConsecutiveErrors() >= maxErrors) {
+			return String.format("%d consecutive invocations threw an exception", stats.getConsecutiveErrors());
+		}
+		if (stats.getConsecutiveSlowInvocations() >= maxSlowInvocations) {
+			return String.format("%d consecutive invocations exceeded the latency budget of %d ms",
+					stats.getConsecutiveSlowInvocations(), latencyBudget);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * The bounded queue of pending events of a single isolated listener, see
+ * {@link ListenerIsolationPolicy}. The queue is drained by a task on the dispatching
+ * executor that is scheduled only while events are pending, so at most one thread
+ * invokes the listener at a time. The task yields its thread after a fixed number of
+ * events so that other listeners sharing the executor are not starved.
+ */
+class ListenerQueue implements BoundedDispatchExecutor.RequiredTask, OrderedDispatchExecutor.OrderedTask {
+
+	private static final int DRAIN_BATCH_SIZE = 64;
+
+	private final EventDispatcher dispatcher;
+
+	private final EventListenerRegistry.Registration registration;
+
+	private final Executor executor;
+
+	private final int capacity;
+
+	private final ArrayDeque<ReceptorEvent<?>> events = new ArrayDeque<ReceptorEvent<?>>();
+
+	private boolean scheduled;
+
+	ListenerQueue(EventDispatcher dispatcher, EventListenerRegistry.Registration registration, Executor executor, int capacity) {
+		this.dispatcher = dispatcher;
+		this.registration = registration;
+		this.executor = executor;
+		this.capacity = capacity;
+	}
+
+	void offer(ReceptorEvent<?> event) {
+		synchronized (this) {
+			if (events.size() >= capacity) {
+				events.poll();
+				registration.stats.recordDropped(1);
+			}
+			events.add(event);
+			registration.stats.setQueueDepth(events.size());
+			if (scheduled) {
+				return;
+			}
+			scheduled = true;
+		}
+		executor.execute(this);
+	}
+
+	/**
+	 * Discard all pending events, counting them as dropped.
+	 */
+	synchronized void clear() {
+		registration.stats.recordDropped(events.size());
+		events.clear();
+		registration.stats.setQueueDepth(0);
+	}
+
+	@Override
+	public void run() {
+		for (int i = 0; i < DRAIN_BATCH_SIZE; i++) {
+			ReceptorEvent<?> event;
+			synchronized (this) {
+				event = events.poll();
+				registration.stats.setQueueDepth(events.size());
+				if (event == null) {
+					scheduled = false;
+					return;
+				}
+			}
+			dispatcher.deliver(registration, event);
+		}
+		synchronized (this) {
+			if (events.isEmpty()) {
+				scheduled = false;
+				return;
+			}
+		}
+		executor.execute(this);
+	}
+
+	@Override
+	public Object getOrderingKey() {
+		return registration;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+/**
+ * Latency, error and drop accounting for a single listener of an {@link EventDispatcher}.
+ * Latencies are measured around each invocation of the listener, so they exclude the
+ * time an event spent queued.
+ */
+public class ListenerStats {
+
+	private long invocations;
+
+	private long errors;
+
+	private long dropped;
+
+	private long totalLatency;
+
+	private long maxLatency;
+
+	private int consecutiveErrors;
+
+	private int consecutiveSlowInvocations;
+
+	private volatile int queueDepth;
+
+	private volatile String quarantineReason;
+
+	synchronized void recordInvocation(long latency, boolean failed, long slowThreshold) {
+		invocations++;
+		totalLatency += latency;
+		if (latency > maxLatency) {
+			maxLatency = latency;
+		}
+		if (failed) {
+			errors++;
+			consecutiveErrors++;
+		}
+		else {
+			consecutiveErrors = 0;
+		}
+		if (slowThreshold > 0 && latency > slowThreshold) {
+			consecutiveSlowInvocations++;
+		}
+		else {
+			consecutiveSlowInvocations = 0;
+		}
+	}
+
+	synchronized void recordDropped(int count) {
+		dropped += count;
+	}
+
+	void setQueueDepth(int queueDepth) {
+		this.queueDepth = queueDepth;
+	}
+
+	synchronized int getConsecutiveErrors() {
+		return consecutiveErrors;
+	}
+
+	synchronized int getConsecutiveSlowInvocations() {
+		return consecutiveSlowInvocations;
+	}
+
+	/**
+	 * @return {@code true} if the listener was not already quarantined
+	 */
+	synchronized boolean quarantine(String reason) {
+		if (quarantineReason != null) {
+			return false;
+		}
+		quarantineReason = reason;
+		return true;
+	}
+
+	synchronized void release() {
+		consecutiveErrors = 0;
+		consecutiveSlowInvocations = 0;
+		quarantineReason = null;
+	}
+
+	public synchronized long getInvocationCount() {
+		return invocations;
+	}
+
+	/**
+	 * @return the number of invocations that threw an exception
+	 */
+	public synchronized long getErrorCount() {
+		return errors;
+	}
+
+	/**
+	 * @return the number of events not delivered because the listener's queue was full
+	 * or the listener was quarantined
+	 */
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * @return the mean latency of an invocation in nanoseconds
+	 */
+	public synchronized long getMeanLatency() {
+		return (invocations > 0 ? totalLatency / invocations : 0);
+	}
+
+	/**
+	 * @return the maximum latency of an invocation in nanoseconds
+	 */
+	public synchronized long getMaxLatency() {
+		return maxLatency;
+	}
+
+	/**
+	 * @return the number of events waiting in the listener's own queue, if isolated
+	 */
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public boolean isQuarantined() {
+		return (quarantineReason != null);
+	}
+
+	/**
+	 * @return why the listener was quarantined, or {@code null} if it is not
+	 */
+	public String getQuarantineReason() {
+		return quarantineReason;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ListenerStats [invocations=" + invocations + ", errors=" + errors + ", dropped=" + dropped
+				+ ", meanLatency=" + getMeanLatency() + ", maxLatency=" + maxLatency + ", queueDepth=" + queueDepth
+				+ ", quarantineReason=" + quarantineReason + "]";
+	}
+}
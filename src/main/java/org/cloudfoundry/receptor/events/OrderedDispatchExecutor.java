@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.receptor.events.BoundedDispatchExecutor.OverflowPolicy;
+import org.springframework.util.Assert;
+
+/**
+ * {@link Executor} for event dispatching that preserves the order of events per LRP.
+ * Each event is assigned by its key (see {@link ReceptorEvent#getKey()}) to one of a
+ * fixed number of stripes, and each stripe runs its tasks on a single thread, so
+ * events for the same desired LRP, or the same actual LRP instance, are delivered to
+ * a listener in the order they were read while other LRPs are dispatched in parallel.
+ */
+public class OrderedDispatchExecutor implements Executor {
+
+	private final BoundedDispatchExecutor[] stripes;
+
+	public OrderedDispatchExecutor() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public OrderedDispatchExecutor(int stripes) {
+		this(stripes, BoundedDispatchExecutor.DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+	}
+
+	/**
+	 * Note that with {@link OverflowPolicy#CONFLATE} a pending event that is replaced
+	 * by a newer event of the same type keeps its original position in the stripe.
+	 *
+	 * @param stripes the number of single-threaded stripes
+	 * @param capacity the maximum number of pending tasks per stripe
+	 * @param overflowPolicy what to do with new tasks when a stripe is full
+	 */
+	public OrderedDispatchExecutor(int stripes, int capacity, OverflowPolicy overflowPolicy) {
+		Assert.isTrue(stripes > 0, "stripes must be positive");
+		this.stripes = new BoundedDispatchExecutor[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.stripes[i] = new BoundedDispatchExecutor(1, capacity, overflowPolicy);
+		}
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		Object key = (task instanceof OrderedTask ? ((OrderedTask) task).getOrderingKey() : null);
+		stripes[stripeFor(key != null ? key : task)].execute(task);
+	}
+
+	private int stripeFor(Object key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return (hash & Integer.MAX_VALUE) % stripes.length;
+	}
+
+	/**
+	 * Stop accepting new tasks; pending tasks are still run.
+	 */
+	public void shutdown() {
+		for (BoundedDispatchExecutor stripe : stripes) {
+			stripe.shutdown();
+		}
+	}
+
+	/**
+	 * Stop accepting new tasks, discard pending tasks and interrupt running ones.
+	 */
+	public void shutdownNow() {
+		for (BoundedDispatchExecutor stripe : stripes) {
+			stripe.shutdownNow();
+		}
+	}
+
+	/**
+	 * Wait for pending tasks to complete after {@link #shutdown()}.
+	 *
+	 * @return whether all tasks completed before the timeout elapsed
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (BoundedDispatchExecutor stripe : stripes) {
+			if (!stripe.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of tasks waiting to be run across all stripes
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (BoundedDispatchExecutor stripe : stripes) {
+			depth += stripe.getQueueDepth();
+		}
+		return depth;
+	}
+
+	/**
+	 * @return the number of tasks discarded because a stripe was full
+	 */
+	public long getDroppedCount() {
+		long count = 0;
+		for (BoundedDispatchExecutor stripe : stripes) {
+			count += stripe.getDroppedCount();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of tasks that replaced a pending task with the same conflation key
+	 */
+	public long getConflatedCount() {
+		long count = 0;
+		for (BoundedDispatchExecutor stripe : stripes) {
+			count += stripe.getConflatedCount();
+		}
+		return count;
+	}
+
+	/**
+	 * A task that must run after any previously submitted task with an equal key.
+	 * Tasks without a key are not ordered.
+	 */
+	interface OrderedTask extends Runnable {
+
+		Object getOrderingKey();
+	}
+}
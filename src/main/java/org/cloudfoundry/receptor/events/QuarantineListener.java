@@ -0,0 +1,31 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+/**
+ * Callback invoked when an {@link EventDispatcher} quarantines a listener that
+ * exceeded the latency or error budget of its {@link ListenerIsolationPolicy}.
+ */
+public interface QuarantineListener {
+
+	/**
+	 * @param listener the listener as it was added to the dispatcher
+	 * @param stats the statistics of the listener, including the quarantine reason
+	 */
+	void onQuarantined(Object listener, ListenerStats stats);
+
+}
@@ -16,23 +16,48 @@
 
 package org.cloudfoundry.receptor.events;
 
+import java.io.IOException;
 import java.util.Map;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.receptor.commands.ActualLRPResponse;
+import org.cloudfoundry.receptor.commands.DesiredLRPResponse;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 /**
  * @author Mark Fisher
  */
 public abstract class ReceptorEvent<D> {
 
+	private static final Log logger = LogFactory.getLog(ReceptorEvent.class);
+
 	private static final ObjectMapper objectMapper = new ObjectMapper();
 
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
 	private final int id;
 
 	private final String type;
 
-	private Map<String, D> data;
+	private volatile Map<String, D> data;
+
+	private byte[] rawData;
+
+	private ObjectReader dataReader;
+
+	private volatile String key;
+
+	/**
+	 * Whether {@link #key} has been computed for the current data.
+	 */
+	private volatile boolean keyResolved;
 
 	public ReceptorEvent(int id, String type) {
 		this.id = id;
@@ -47,12 +72,148 @@ public abstract class ReceptorEvent<D> {
 		return type;
 	}
 
+	/**
+	 * Return the event data. If the event was read with raw data, that data is bound
+	 * on the first invocation and the result is cached.
+	 */
 	public Map<String, D> getData() {
-		return data;
+		Map<String, D> result = this.data;
+		if (result == null) {
+			synchronized (this) {
+				if (this.data == null && this.rawData != null) {
+					try {
+						this.data = this.dataReader.readValue(this.rawData);
+					}
+					catch (IOException e) {
+						logger.warn("failed to map event data", e);
+					}
+					this.rawData = null;
+					this.dataReader = null;
+				}
+				result = this.data;
+			}
+		}
+		return result;
 	}
 
-	public void setData(Map<String, D> data) {
+	public synchronized void setData(Map<String, D> data) {
 		this.data = data;
+		this.rawData = null;
+		this.dataReader = null;
+		this.keyResolved = false;
+	}
+
+	/**
+	 * Set the unparsed JSON data of this event, to be bound by the given reader
+	 * when {@link #getData()} is first invoked.
+	 */
+	synchronized void setRawData(byte[] rawData, ObjectReader dataReader) {
+		this.data = null;
+		this.rawData = rawData;
+		this.dataReader = dataReader;
+		this.keyResolved = false;
+	}
+
+	/**
+	 * @return the unparsed JSON data, or {@code null} if the data has been bound
+	 */
+	synchronized byte[] getRawData() {
+		return rawData;
+	}
+
+	/**
+	 * Return a key identifying the LRP this event refers to: the process guid of a
+	 * desired LRP, or the process guid and index of an actual LRP.
+	 *
+	 * @return the key, or {@code null} if the event does not refer to a known LRP
+	 */
+	public String getKey() {
+		return null;
+	}
+
+	/**
+	 * Return the key of the LRP in the given field of the data. Raw data is scanned
+	 * without being bound, since keys are computed on the event stream reader thread.
+	 * The key is computed once and cached until the data is replaced, so subclasses
+	 * must always pass the same field.
+	 *
+	 * @param field the name of the field that holds the LRP
+	 * @param indexed whether the key includes the index, as for actual LRPs
+	 * @return the key, or {@code null} if the field holds no LRP with a process guid
+	 */
+	protected String getKey(String field, boolean indexed) {
+		if (!this.keyResolved) {
+			this.key = resolveKey(field, indexed);
+			this.keyResolved = true;
+		}
+		return this.key;
+	}
+
+	private String resolveKey(String field, boolean indexed) {
+		byte[] rawData = getRawData();
+		if (rawData != null) {
+			try {
+				return scanKey(rawData, field, indexed);
+			}
+			catch (IOException e) {
+				logger.warn("failed to scan event data", e);
+				return null;
+			}
+		}
+		Map<String, D> data = getData();
+		Object lrp = (data != null ? data.get(field) : null);
+		if (lrp instanceof ActualLRPResponse) {
+			ActualLRPResponse actualLRP = (ActualLRPResponse) lrp;
+			return key(actualLRP.getProcessGuid(), actualLRP.getIndex(), indexed);
+		}
+		if (lrp instanceof DesiredLRPResponse) {
+			return key(((DesiredLRPResponse) lrp).getProcessGuid(), 0, indexed);
+		}
+		return null;
+	}
+
+	private static String scanKey(byte[] rawData, String field, boolean indexed) throws IOException {
+		JsonParser parser = jsonFactory.createParser(rawData);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return null;
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				boolean lrpField = field.equals(parser.getCurrentName());
+				JsonToken token = parser.nextToken();
+				if (!lrpField || token != JsonToken.START_OBJECT) {
+					parser.skipChildren();
+					continue;
+				}
+				String processGuid = null;
+				int index = 0;
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String name = parser.getCurrentName();
+					token = parser.nextToken();
+					if (token == JsonToken.VALUE_STRING && "process_guid".equals(name)) {
+						processGuid = parser.getText();
+					}
+					else if (token == JsonToken.VALUE_NUMBER_INT && "index".equals(name)) {
+						index = parser.getIntValue();
+					}
+					else {
+						parser.skipChildren();
+					}
+				}
+				return key(processGuid, index, indexed);
+			}
+			return null;
+		}
+		finally {
+			parser.close();
+		}
+	}
+
+	private static String key(String processGuid, int index, boolean indexed) {
+		if (processGuid == null) {
+			return null;
+		}
+		return (indexed ? processGuid + "/" + index : processGuid);
 	}
 
 	@Override
@@ -62,10 +223,10 @@ public abstract class ReceptorEvent<D> {
 		builder.append(String.format("event: %s%n", type));
 		String dataString;
 		try {
-			dataString = objectMapper.writeValueAsString(data);
+			dataString = objectMapper.writeValueAsString(getData());
 		}
 		catch (JsonProcessingException e) {
-			dataString = (data != null ? data.toString() : null);
+			dataString = String.valueOf(getData());
 		}
 		builder.append(String.format("data: %s%n", dataString));
 		return builder.toString();
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.springframework.util.Assert;
+
+/**
+ * Determines how long the {@link EventDispatcher} waits before reconnecting to the
+ * event stream. Delays grow exponentially with the number of consecutive failures
+ * and are fully jittered so that many clients do not reconnect in lockstep. Once
+ * the failure threshold is reached the breaker opens, and a single probe attempt
+ * is made after the open interval (half-open) before deciding whether to close it.
+ */
+public class ReconnectPolicy {
+
+	public static enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	public static final long DEFAULT_INITIAL_DELAY = 500;
+
+	public static final long DEFAULT_MAX_DELAY = 30000;
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 10;
+
+	public static final long DEFAULT_OPEN_INTERVAL = 60000;
+
+	private final long initialDelay;
+
+	private final long maxDelay;
+
+	private final int failureThreshold;
+
+	private final long openInterval;
+
+	private State state = State.CLOSED;
+
+	private int consecutiveFailures;
+
+	public ReconnectPolicy() {
+		this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_INTERVAL);
+	}
+
+	/**
+	 * @param initialDelay upper bound of the first delay in milliseconds
+	 * @param maxDelay upper bound of any backoff delay in milliseconds
+	 * @param failureThreshold number of consecutive failures that opens the breaker
+	 * @param openInterval milliseconds to wait while open before a half-open probe
+	 */
+	public ReconnectPolicy(long initialDelay, long maxDelay, int failureThreshold, long openInterval) {
+		Assert.isTrue(initialDelay > 0, "initialDelay must be positive");
+		Assert.isTrue(maxDelay >= initialDelay, "maxDelay must not be less than initialDelay");
+		Assert.isTrue(failureThreshold > 0, "failureThreshold must be positive");
+		Assert.isTrue(openInterval >= 0, "openInterval must not be negative");
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		this.failureThreshold = failureThreshold;
+		this.openInterval = openInterval;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	/**
+	 * Invoked before each connection attempt.
+	 */
+	synchronized void beforeAttempt() {
+		if (state == State.OPEN) {
+			state = State.HALF_OPEN;
+		}
+	}
+
+	/**
+	 * Invoked when the first event or heartbeat is read from a new connection.
+	 */
+	synchronized void onSuccess() {
+		consecutiveFailures = 0;
+		state = State.CLOSED;
+	}
+
+	/**
+	 * Invoked when a connection attempt or an open stream fails.
+	 */
+	synchronized void onFailure() {
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+			state = State.OPEN;
+		}
+	}
+
+	/**
+	 * @return the number of milliseconds to wait before the next connection attempt
+	 */
+	synchronized long nextDelay() {
+		if (state == State.OPEN) {
+			return openInterval + jitter(initialDelay);
+		}
+		long ceiling = initialDelay;
+		for (int i = 0; i < consecutiveFailures && ceiling < maxDelay; i++) {
+			ceiling = (ceiling > maxDelay / 2 ? maxDelay : ceiling * 2);
+		}
+		return jitter(ceiling);
+	}
+
+	private static long jitter(long bound) {
+		return ThreadLocalRandom.current().nextLong(bound + 1);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ReconnectPolicy [state=" + state + ", consecutiveFailures=" + consecutiveFailures + "]";
+	}
+}
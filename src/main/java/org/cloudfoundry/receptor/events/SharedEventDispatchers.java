@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.util.Assert;
+import org.springframework.web.client.RestOperations;
+
+/**
+ * JVM-wide registry of {@link EventDispatcher}s keyed by event stream URL and
+ * RestOperations, so that any number of clients of the same Receptor share a single
+ * connection, and every event is parsed once and fanned out to the listeners of all
+ * of them. Clients only share a dispatcher if they use the same RestOperations
+ * instance, since its configuration, e.g. authentication or timeouts, applies to the
+ * connection. Dispatchers are reference counted: the first {@link #acquire} opens the
+ * dispatcher, and the last {@link #release} closes it.
+ * <p>
+ * Settings such as the reconnect policy and idle timeout of a shared dispatcher
+ * apply to every client using it.
+ */
+public final class SharedEventDispatchers {
+
+	private static final Map<Key, SharedDispatcher> dispatchers = new HashMap<Key, SharedDispatcher>();
+
+	private SharedEventDispatchers() {
+	}
+
+	/**
+	 * Return the shared dispatcher for the given URL and RestOperations, creating it if
+	 * necessary. Each call must be matched by a call to {@link #release}.
+	 *
+	 * @param url the URL of the event stream
+	 * @param restTemplate the RestOperations used to read the event stream
+	 * @return the shared dispatcher
+	 */
+	public static EventDispatcher acquire(String url, RestOperations restTemplate) {
+		Assert.hasText(url, "URL is required");
+		Assert.notNull(restTemplate, "RestTemplate is required");
+		Key key = new Key(url, restTemplate);
+		synchronized (dispatchers) {
+			SharedDispatcher shared = dispatchers.get(key);
+			if (shared == null) {
+				shared = new SharedDispatcher(key, new EventDispatcher(url, restTemplate));
+				dispatchers.put(key, shared);
+			}
+			shared.references++;
+			return shared.dispatcher;
+		}
+	}
+
+	/**
+	 * Release a dispatcher obtained from {@link #acquire}, closing it if this was the
+	 * last reference.
+	 *
+	 * @param dispatcher the dispatcher to release
+	 * @param timeout the maximum time to wait for pending events if it is closed
+	 * @param unit the unit of the timeout
+	 * @return whether all pending events were dispatched if the dispatcher was closed,
+	 * otherwise {@code true}
+	 */
+	public static boolean release(EventDispatcher dispatcher, long timeout, TimeUnit unit) {
+		SharedDispatcher shared = null;
+		synchronized (dispatchers) {
+			for (SharedDispatcher candidate : dispatchers.values()) {
+				if (candidate.dispatcher == dispatcher) {
+					shared = candidate;
+					break;
+				}
+			}
+			Assert.notNull(shared, "dispatcher is not shared or was already released");
+			if (--shared.references > 0) {
+				return true;
+			}
+			dispatchers.remove(shared.key);
+		}
+		return dispatcher.close(timeout, unit);
+	}
+
+	/**
+	 * @param url the URL of the event stream
+	 * @param restTemplate the RestOperations used to read the event stream
+	 * @return the number of unreleased references to the shared dispatcher for the URL
+	 * and RestOperations
+	 */
+	public static int getReferenceCount(String url, RestOperations restTemplate) {
+		synchronized (dispatchers) {
+			SharedDispatcher shared = dispatchers.get(new Key(url, restTemplate));
+			return (shared != null ? shared.references : 0);
+		}
+	}
+
+	/**
+	 * The URL of an event stream and the RestOperations instance that reads it,
+	 * compared by identity.
+	 */
+	private static class Key {
+
+		private final String url;
+
+		private final RestOperations restTemplate;
+
+		private Key(String url, RestOperations restTemplate) {
+			this.url = url;
+			this.restTemplate = restTemplate;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key otherKey = (Key) other;
+			return (this.url.equals(otherKey.url) && this.restTemplate == otherKey.restTemplate);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.url.hashCode() * 31 + System.identityHashCode(this.restTemplate);
+		}
+	}
+
+	private static class SharedDispatcher {
+
+		private final Key key;
+
+		private final EventDispatcher dispatcher;
+
+		private int references;
+
+		private SharedDispatcher(Key key, EventDispatcher dispatcher) {
+			this.key = key;
+			this.dispatcher = dispatcher;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+/**
+ * Callback invoked when the event stream has been idle for longer than the idle
+ * timeout of the {@link EventDispatcher}, and again once it delivers data after
+ * the forced reconnect.
+ */
+public interface StreamStallListener {
+
+	/**
+	 * @param idleMillis the number of milliseconds since data was last received
+	 */
+	void onStalled(long idleMillis);
+
+	/**
+	 * @param stalledMillis the number of milliseconds between the last data received
+	 * before the stall and the first data received after it
+	 */
+	void onResumed(long stalledMillis);
+
+}
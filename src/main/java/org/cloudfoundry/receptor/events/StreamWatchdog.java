@@ -0,0 +1,234 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Detects an event stream that has stopped delivering data, including comment
+ * heartbeats, for longer than the idle timeout. A stalled stream is aborted so that
+ * the {@link EventDispatcher} reconnects, and {@link StreamStallListener}s are
+ * notified when the stall is detected and when data is received again.
+ */
+class StreamWatchdog {
+
+	private static final Log logger = LogFactory.getLog(StreamWatchdog.class);
+
+	private static final long MIN_CHECK_INTERVAL = 10;
+
+	private static final long MAX_CHECK_INTERVAL = 1000;
+
+	private final Runnable abortAction;
+
+	private final Set<StreamStallListener> listeners = new CopyOnWriteArraySet<StreamStallListener>();
+
+	private final AtomicLong stallCount = new AtomicLong();
+
+	private final AtomicLong totalStallTime = new AtomicLong();
+
+	private final AtomicLong heartbeatCount = new AtomicLong();
+
+	private final AtomicInteger suspensions = new AtomicInteger();
+
+	private volatile long idleTimeout;
+
+	private volatile long lastActivity = System.nanoTime();
+
+	private volatile boolean streaming;
+
+	private volatile boolean stalled;
+
+	private volatile long stalledSince;
+
+	private volatile long lastStallDuration;
+
+	private ScheduledExecutorService scheduler;
+
+	private ScheduledFuture<?> check;
+
+	StreamWatchdog(Runnable abortAction) {
+		this.abortAction = abortAction;
+	}
+
+	synchronized void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		if (check != null) {
+			check.cancel(false);
+			check = null;
+		}
+		if (idleTimeout > 0) {
+			if (scheduler == null) {
+				scheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("receptor-event-watchdog-"));
+			}
+			long interval = Math.min(MAX_CHECK_INTERVAL, Math.max(MIN_CHECK_INTERVAL, idleTimeout / 4));
+			check = scheduler.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					checkIdle();
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	void addListener(StreamStallListener listener) {
+		listeners.add(listener);
+	}
+
+	boolean removeListener(StreamStallListener listener) {
+		return listeners.remove(listener);
+	}
+
+	/**
+	 * Track the activity of a newly opened stream.
+	 */
+	InputStream watch(InputStream inputStream) {
+		lastActivity = System.nanoTime();
+		streaming = true;
+		return new FilterInputStream(inputStream) {
+
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				recordActivity();
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int read = super.read(b, off, len);
+				if (read > 0) {
+					recordActivity();
+				}
+				return read;
+			}
+
+			@Override
+			public void close() throws IOException {
+				streaming = false;
+				super.close();
+			}
+		};
+	}
+
+	/**
+	 * Stop checking for stalls, e.g. while reading is paused for backpressure.
+	 */
+	void suspend() {
+		suspensions.incrementAndGet();
+	}
+
+	/**
+	 * Resume checking for stalls after {@link #suspend()}, restarting the idle time.
+	 */
+	void resume() {
+		lastActivity = System.nanoTime();
+		suspensions.decrementAndGet();
+	}
+
+	void onHeartbeat() {
+		heartbeatCount.incrementAndGet();
+	}
+
+	private void recordActivity() {
+		long now = System.nanoTime();
+		if (stalled) {
+			stalled = false;
+			long duration = TimeUnit.NANOSECONDS.toMillis(now - stalledSince);
+			lastStallDuration = duration;
+			totalStallTime.addAndGet(duration);
+			logger.info(String.format("Event stream resumed after stalling for %d ms.", duration));
+			for (StreamStallListener listener : listeners) {
+				try {
+					listener.onResumed(duration);
+				}
+				catch (RuntimeException e) {
+					logger.warn("Exception thrown by stall listener " + listener, e);
+				}
+			}
+		}
+		lastActivity = now;
+	}
+
+	private void checkIdle() {
+		long timeout = idleTimeout;
+		if (!streaming || timeout <= 0 || suspensions.get() > 0) {
+			return;
+		}
+		long last = lastActivity;
+		long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - last);
+		if (idle < timeout) {
+			return;
+		}
+		streaming = false;
+		logger.warn(String.format("Event stream idle for %d ms, reconnecting.", idle));
+		if (!stalled) {
+			stalledSince = last;
+			stalled = true;
+			stallCount.incrementAndGet();
+			for (StreamStallListener listener : listeners) {
+				try {
+					listener.onStalled(idle);
+				}
+				catch (RuntimeException e) {
+					logger.warn("Exception thrown by stall listener " + listener, e);
+				}
+			}
+		}
+		abortAction.run();
+	}
+
+	long getStallCount() {
+		return stallCount.get();
+	}
+
+	long getLastStallDuration() {
+		return lastStallDuration;
+	}
+
+	long getTotalStallTime() {
+		return totalStallTime.get();
+	}
+
+	long getHeartbeatCount() {
+		return heartbeatCount.get();
+	}
+
+	synchronized void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+}
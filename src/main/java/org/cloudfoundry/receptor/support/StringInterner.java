@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.support;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.springframework.util.Assert;
+
+/**
+ * Bounded table of canonical strings, so that equal values such as domains, cell ids
+ * and process guids that repeat across many responses share a single instance. Each
+ * string maps to one slot of the table by its hash, and a string found in its slot is
+ * returned instead of an equal one. Otherwise the new string takes over the slot, so
+ * the table never grows, and frequent values tend to stay while unique ones are
+ * overwritten. Safe for concurrent use without locking.
+ */
+public class StringInterner {
+
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private final AtomicReferenceArray<String> table;
+
+	private final int mask;
+
+	public StringInterner() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity the number of slots, rounded up to a power of two
+	 */
+	public StringInterner(int capacity) {
+		Assert.isTrue(capacity > 0 && capacity <= 1 << 30, "capacity must be between 1 and 2^30");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.table = new AtomicReferenceArray<String>(size);
+		this.mask = size - 1;
+	}
+
+	/**
+	 * @return the canonical instance of the value
+	 */
+	public String intern(String value) {
+		if (value == null) {
+			return null;
+		}
+		int slot = slot(value.hashCode());
+		String canonical = table.get(slot);
+		if (value.equals(canonical)) {
+			return canonical;
+		}
+		table.lazySet(slot, value);
+		return value;
+	}
+
+	/**
+	 * Intern the characters, creating a string only if there is no equal canonical one.
+	 *
+	 * @return the canonical instance of the string of the given characters
+	 */
+	public String intern(char[] chars, int offset, int length) {
+		int hash = 0;
+		for (int i = offset; i < offset + length; i++) {
+			hash = 31 * hash + chars[i];
+		}
+		int slot = slot(hash);
+		String canonical = table.get(slot);
+		if (canonical != null && equals(canonical, chars, offset, length)) {
+			return canonical;
+		}
+		String value = new String(chars, offset, length);
+		table.lazySet(slot, value);
+		return value;
+	}
+
+	public int getCapacity() {
+		return table.length();
+	}
+
+	private int slot(int hash) {
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	private static boolean equals(String value, char[] chars, int offset, int length) {
+		if (value.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (value.charAt(i) != chars[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.cloudfoundry.receptor.commands.ActualLRPResponse;
+import org.cloudfoundry.receptor.support.ModificationTag;
+import org.cloudfoundry.receptor.support.Port;
+import org.junit.Test;
+
+public class ActualLRPStoreTests {
+
+	private final ActualLRPStore store = new ActualLRPStore();
+
+	@Test
+	public void testViewsReadStoredFields() {
+		String instanceGuid = UUID.randomUUID().toString();
+		ActualLRPResponse actualLRP = actualLRP("p1", 3, "RUNNING", "cell-a");
+		actualLRP.setInstanceGuid(instanceGuid);
+		actualLRP.setAddress("10.0.0.1");
+		Port port = new Port();
+		port.setContainerPort(8080);
+		port.setHostPort(61001);
+		actualLRP.setPorts(new Port[] {port});
+		actualLRP.setSince(1234567890123L);
+		ModificationTag tag = new ModificationTag();
+		tag.setEpoch("e");
+		tag.setIndex(7);
+		actualLRP.setModificationTag(tag);
+		store.put(actualLRP);
+
+		ActualLRPResponse view = store.get("p1", 3, false);
+		assertEquals("p1", view.getProcessGuid());
+		assertEquals(instanceGuid, view.getInstanceGuid());
+		assertEquals("cell-a", view.getCellId());
+		assertEquals("d1", view.getDomain());
+		assertEquals(3, view.getIndex());
+		assertEquals("RUNNING", view.getState());
+		assertEquals("10.0.0.1", view.getAddress());
+		assertEquals(61001, view.getPorts()[0].getHostPort());
+		assertEquals(1234567890123L, view.getSince());
+		assertEquals(7, view.getModificationTag().getIndex());
+		assertNull(store.get("p1", 3, true));
+		assertEquals(actualLRP.toString(), ActualLRPStore.copy(view).toString());
+
+		ActualLRPResponse evacuating = actualLRP("p1", 3, "RUNNING", "cell-b");
+		evacuating.setEvacuating(true);
+		evacuating.setInstanceGuid("not-a-uuid");
+		store.put(evacuating);
+		assertEquals("not-a-uuid", store.get("p1", 3, true).getInstanceGuid());
+		assertNull(store.get("p1", 3, true).getModificationTag());
+		assertEquals(2, store.size());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testViewsFollowUpdatesUntilRemoved() {
+		ActualLRPResponse view = store.put(actualLRP("p1", 0, "CLAIMED", "cell-a"));
+		store.put(actualLRP("p1", 0, "CRASHED", null));
+		assertEquals("CRASHED", view.getState());
+		assertNull(view.getCellId());
+		assertEquals(1, store.size());
+
+		assertTrue(store.remove("p1", 0, false));
+		assertFalse(store.remove("p1", 0, false));
+		store.put(actualLRP("p2", 0, "RUNNING", "cell-a"));
+		assertEquals("p2", store.getAll().get(0).getProcessGuid());
+		view.getState();
+	}
+
+	@Test
+	public void testManyInstancesWithRemovals() {
+		for (int i = 0; i < 5000; i++) {
+			store.put(actualLRP("p" + (i % 50), i / 50, "RUNNING", "cell-" + (i % 7)));
+		}
+		for (int i = 0; i < 5000; i += 2) {
+			assertTrue(store.remove("p" + (i % 50), i / 50, false));
+		}
+		assertEquals(2500, store.size());
+		for (int i = 0; i < 5000; i++) {
+			ActualLRPResponse view = store.get("p" + (i % 50), i / 50, false);
+			if (i % 2 == 0) {
+				assertNull(view);
+			}
+			else {
+				assertEquals("cell-" + (i % 7), view.getCellId());
+			}
+		}
+		assertEquals(2500, store.getAll().size());
+		store.clear();
+		assertEquals(0, store.size());
+		assertNull(store.get("p1", 0, false));
+	}
+
+	@Test
+	public void testIndexesFollowUpdatesAndRemovals() {
+		for (int i = 0; i < 1000; i++) {
+			store.put(actualLRP("p" + (i % 10), i / 10, (i % 3 == 0 ? "CRASHED" : "RUNNING"), "cell-" + (i % 4)));
+		}
+		assertEquals(100, store.getByProcessGuid("p3").size());
+		assertEquals(250, store.getByCell("cell-1", null).size());
+		assertEquals(334, store.getByState("CRASHED").size());
+		assertEquals(334, store.getByDomain("d1", "CRASHED").size());
+		assertTrue(store.getByState("UNCLAIMED").isEmpty());
+		assertTrue(store.getByCell("cell-9", null).isEmpty());
+		assertTrue(store.getEvacuating().isEmpty());
+
+		ActualLRPResponse moved = actualLRP("p0", 0, "RUNNING", "cell-9");
+		moved.setEvacuating(true);
+		store.put(moved);
+		store.put(actualLRP("p0", 1, "RUNNING", "cell-9"));
+		for (int i = 0; i < 1000; i += 10) {
+			store.remove("p0", i / 10, false);
+		}
+		assertEquals(1, store.getByProcessGuid("p0").size());
+		assertEquals(1, store.getByCell("cell-9", "RUNNING").size());
+		assertTrue(store.getEvacuating().get(0).isEvacuating());
+		assertEquals(1000 - 100 + 1, store.getAll().size());
+		int running = 0;
+		for (ActualLRPResponse actualLRP : store.getByState("RUNNING")) {
+			assertEquals("RUNNING", actualLRP.getState());
+			running++;
+		}
+		assertEquals(store.size() - store.getByState("CRASHED").size(), running);
+	}
+
+	@Test
+	public void testCopyIsIndependent() {
+		store.put(actualLRP("p1", 0, "RUNNING", "cell-a"));
+		ActualLRPStore copy = new ActualLRPStore(store);
+		store.remove("p1", 0, false);
+		store.put(actualLRP("p2", 0, "CRASHED", "cell-a"));
+
+		assertEquals(1, copy.size());
+		assertEquals("RUNNING", copy.get("p1", 0, false).getState());
+		assertEquals("p1", copy.getByCell("cell-a", null).get(0).getProcessGuid());
+		assertNull(copy.get("p2", 0, false));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPutWithoutProcessGuidIsRejected() {
+		store.put(actualLRP(null, 0, "RUNNING", "cell-a"));
+	}
+
+	private static ActualLRPResponse actualLRP(String processGuid, int index, String state, String cellId) {
+		ActualLRPResponse actualLRP = new ActualLRPResponse();
+		actualLRP.setProcessGuid(processGuid);
+		actualLRP.setIndex(index);
+		actualLRP.setState(state);
+		actualLRP.setCellId(cellId);
+		actualLRP.setDomain("d1");
+		return actualLRP;
+	}
+}
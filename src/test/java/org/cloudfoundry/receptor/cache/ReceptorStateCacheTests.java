@@ -0,0 +1,313 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.receptor.client.ReceptorOperations;
+import org.cloudfoundry.receptor.commands.ActualLRPResponse;
+import org.cloudfoundry.receptor.commands.DesiredLRPResponse;
+import org.cloudfoundry.receptor.events.ActualLRPChangedEvent;
+import org.cloudfoundry.receptor.events.ActualLRPCreatedEvent;
+import org.cloudfoundry.receptor.events.ActualLRPRemovedEvent;
+import org.cloudfoundry.receptor.events.DesiredLRPRemovedEvent;
+import org.cloudfoundry.receptor.events.DispatchMode;
+import org.cloudfoundry.receptor.events.EventFilter;
+import org.cloudfoundry.receptor.events.EventGapListener;
+import org.cloudfoundry.receptor.events.EventListener;
+import org.cloudfoundry.receptor.events.ReceptorEvent;
+import org.cloudfoundry.receptor.support.ModificationTag;
+import org.cloudfoundry.receptor.support.Port;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class ReceptorStateCacheTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Mock
+	private ReceptorOperations receptor;
+
+	private ReceptorStateCache cache;
+
+	private EventListener listener;
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+		cache = new ReceptorStateCache(receptor);
+	}
+
+	@Test
+	public void testEventsDuringListAreAppliedAfterwards() {
+		when(receptor.getDesiredLRPs()).thenReturn(Arrays.asList(desiredLRP("p1"), desiredLRP("p2")));
+		when(receptor.getActualLRPs()).thenAnswer(new Answer<List<ActualLRPResponse>>() {
+
+			@Override
+			public List<ActualLRPResponse> answer(InvocationOnMock invocation) {
+				listener.onEvent(event(new ActualLRPCreatedEvent(1), "actual_lrp", actualLRP("p1", 1, "CLAIMED", 2)));
+				return Arrays.asList(actualLRP("p1", 0, "RUNNING", 5), actualLRP("p1", 1, "UNCLAIMED", 1));
+			}
+		});
+		start();
+
+		assertTrue(cache.isSynced());
+		assertEquals(2, cache.getDesiredLRPs().size());
+		assertEquals("CLAIMED", cache.getActualLRP("p1", 1).getState());
+
+		listener.onEvent(event(new ActualLRPRemovedEvent(2), "actual_lrp", actualLRP("p1", 0, "RUNNING", 4)));
+		assertEquals("RUNNING", cache.getActualLRP("p1", 0).getState());
+		ReceptorStateCache.Snapshot snapshot = cache.getSnapshot();
+		listener.onEvent(changed(3, actualLRP("p1", 0, "RUNNING", 5), actualLRP("p1", 0, "CRASHED", 6)));
+		listener.onEvent(event(new DesiredLRPRemovedEvent(4), "desired_lrp", desiredLRP("p2")));
+
+		assertEquals("CRASHED", cache.getActualLRP("p1", 0).getState());
+		assertNull(cache.getDesiredLRP("p2"));
+		assertEquals(2, snapshot.getActualLRPs().size());
+		assertEquals(2, snapshot.getDesiredLRPs().size());
+		assertEquals(1, cache.getResyncCount());
+	}
+
+	@Test
+	public void testGapTriggersResyncOnSeparateThread() throws Exception {
+		DesiredLRPResponse p1 = desiredLRP("p1");
+		final List<Thread> listingThreads = new CopyOnWriteArrayList<Thread>();
+		when(receptor.getDesiredLRPs()).thenReturn(Collections.singletonList(p1)).thenAnswer(new Answer<List<DesiredLRPResponse>>() {
+
+			@Override
+			public List<DesiredLRPResponse> answer(InvocationOnMock invocation) {
+				listingThreads.add(Thread.currentThread());
+				return Collections.emptyList();
+			}
+		});
+		when(receptor.getActualLRPs()).thenReturn(Collections.<ActualLRPResponse>emptyList());
+		start();
+		assertSame(p1, cache.getDesiredLRP("p1"));
+
+		((EventGapListener) listener).onGap(3, 7);
+		for (int i = 0; i < 500 && cache.getResyncCount() < 2; i++) {
+			Thread.sleep(10);
+		}
+		assertNull(cache.getDesiredLRP("p1"));
+		assertEquals(2, cache.getResyncCount());
+		assertNotSame(Thread.currentThread(), listingThreads.get(0));
+
+		cache.close();
+		verify(receptor).unsubscribe(listener);
+	}
+
+	@Test
+	public void testResyncRequestedWhileListingListsAgain() {
+		when(receptor.getDesiredLRPs()).thenReturn(Collections.<DesiredLRPResponse>emptyList());
+		when(receptor.getActualLRPs()).thenAnswer(new Answer<List<ActualLRPResponse>>() {
+
+			@Override
+			public List<ActualLRPResponse> answer(InvocationOnMock invocation) {
+				cache.resync();
+				return Collections.emptyList();
+			}
+		}).thenReturn(Collections.singletonList(actualLRP("p1", 0, "RUNNING", 1)));
+		start();
+
+		assertEquals(2, cache.getResyncCount());
+		assertEquals("RUNNING", cache.getActualLRP("p1", 0).getState());
+	}
+
+	@Test
+	public void testIndexesFollowEvents() {
+		when(receptor.getDesiredLRPs()).thenReturn(Collections.<DesiredLRPResponse>emptyList());
+		when(receptor.getActualLRPs()).thenReturn(Arrays.asList(actualLRP("p1", 0, "RUNNING", 1, "d1", "cell-a"),
+				actualLRP("p1", 1, "RUNNING", 1, "d1", "cell-b"), actualLRP("p2", 0, "CRASHED", 1, "d2", "cell-a")));
+		start();
+
+		assertEquals(2, cache.getActualLRPsByCell("cell-a").size());
+		assertEquals(1, cache.getActualLRPsByCell("cell-a", "RUNNING").size());
+		assertEquals(2, cache.getActualLRPsByProcessGuid("p1").size());
+		assertEquals(1, cache.getActualLRPsByDomain("d2", "CRASHED").size());
+
+		ActualLRPResponse evacuating = actualLRP("p1", 0, "RUNNING", 1, "d1", "cell-a");
+		evacuating.setEvacuating(true);
+		listener.onEvent(event(new ActualLRPCreatedEvent(1), "actual_lrp", evacuating));
+		listener.onEvent(changed(2, actualLRP("p1", 0, "RUNNING", 1, "d1", "cell-a"),
+				actualLRP("p1", 0, "RUNNING", 2, "d1", "cell-c")));
+		listener.onEvent(event(new ActualLRPRemovedEvent(3), "actual_lrp", actualLRP("p2", 0, "CRASHED", 1, "d2", "cell-a")));
+
+		assertEquals(1, cache.getActualLRPsByCell("cell-a").size());
+		assertEquals(1, cache.getEvacuatingActualLRPs().size());
+		assertTrue(cache.getEvacuatingActualLRPs().get(0).isEvacuating());
+		assertEquals(1, cache.getActualLRPsByCell("cell-c", "RUNNING").size());
+		assertEquals(3, cache.getActualLRPsByProcessGuid("p1").size());
+		assertEquals(3, cache.getActualLRPsByState("RUNNING").size());
+		assertTrue(cache.getActualLRPsByDomain("d2").isEmpty());
+		assertTrue(cache.getActualLRPsByState("CRASHED").isEmpty());
+	}
+
+	@Test
+	public void testSnapshotIsServedWhileListingInBackground() throws Exception {
+		DesiredLRPResponse desiredLRP = desiredLRP("p1");
+		desiredLRP.runAction().setPath("/app");
+		desiredLRP.addHttpRoute(8080, "app.example.com");
+		ActualLRPResponse running = actualLRP("p1", 0, "RUNNING", 3, "d1", "cell-a");
+		Port port = new Port();
+		port.setContainerPort(8080);
+		port.setHostPort(61001);
+		running.setPorts(new Port[] {port});
+		when(receptor.getDesiredLRPs()).thenReturn(Collections.singletonList(desiredLRP));
+		when(receptor.getActualLRPs()).thenReturn(Arrays.asList(running, actualLRP("p1", 1, "UNCLAIMED", 1)));
+		start();
+		listener.onEvent(changed(41, actualLRP("p1", 1, "UNCLAIMED", 1), actualLRP("p1", 1, "CLAIMED", 2, "d1", "cell-b")));
+		File file = folder.newFile("lrps.snapshot");
+		cache.writeSnapshot(file);
+
+		setUp();
+		final CountDownLatch listing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		when(receptor.getDesiredLRPs()).thenReturn(Collections.singletonList(desiredLRP));
+		when(receptor.getActualLRPs()).thenAnswer(new Answer<List<ActualLRPResponse>>() {
+
+			@Override
+			public List<ActualLRPResponse> answer(InvocationOnMock invocation) throws InterruptedException {
+				listing.countDown();
+				release.await();
+				return Arrays.asList(actualLRP("p1", 0, "CRASHED", 4), actualLRP("p1", 1, "CLAIMED", 2));
+			}
+		});
+		start(file);
+
+		InOrder subscriptions = inOrder(receptor);
+		subscriptions.verify(receptor).subscribeToEventGaps(any(EventGapListener.class));
+		subscriptions.verify(receptor).subscribeToEvents(any(EventListener.class), isNull(EventFilter.class), eq(DispatchMode.INLINE));
+		assertTrue(listing.await(5, TimeUnit.SECONDS));
+		assertFalse(cache.isSynced());
+		assertEquals(Integer.valueOf(41), cache.getLastEventId());
+		assertEquals("/app", cache.getDesiredLRP("p1").runAction().getPath());
+		ActualLRPResponse restored = cache.getActualLRP("p1", 0);
+		assertEquals("RUNNING", restored.getState());
+		assertEquals(61001, restored.getPorts()[0].getHostPort());
+		assertEquals(3, restored.getModificationTag().getIndex());
+		assertEquals(1, cache.getActualLRPsByCell("cell-b", "CLAIMED").size());
+
+		listener.onEvent(event(new ActualLRPRemovedEvent(42), "actual_lrp", actualLRP("p1", 1, "CLAIMED", 2)));
+		release.countDown();
+		for (int i = 0; i < 500 && !cache.isSynced(); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(cache.isSynced());
+		assertEquals("CRASHED", cache.getActualLRP("p1", 0).getState());
+		assertNull(cache.getActualLRP("p1", 1));
+		assertEquals(Integer.valueOf(42), cache.getLastEventId());
+		assertEquals(1, cache.getResyncCount());
+		verify(receptor, never()).resumeEventsAfter(anyInt());
+		cache.close();
+	}
+
+	private void start() {
+		start(null);
+	}
+
+	private void start(File snapshotFile) {
+		doAnswer(new Answer<Object>() {
+
+			@Override
+			public Object answer(InvocationOnMock invocation) {
+				listener = (EventListener) invocation.getArguments()[0];
+				return null;
+			}
+		}).when(receptor).subscribeToEvents(any(EventListener.class), isNull(EventFilter.class), eq(DispatchMode.INLINE));
+		if (snapshotFile != null) {
+			cache.start(snapshotFile);
+		}
+		else {
+			cache.start();
+		}
+	}
+
+	private static ReceptorEvent event(ReceptorEvent event, String name, Object data) {
+		Map map = new HashMap();
+		map.put(name, data);
+		event.setData(map);
+		return event;
+	}
+
+	private static ActualLRPChangedEvent changed(int id, ActualLRPResponse before, ActualLRPResponse after) {
+		Map map = new HashMap();
+		map.put("actual_lrp_before", before);
+		map.put("actual_lrp_after", after);
+		ActualLRPChangedEvent event = new ActualLRPChangedEvent(id);
+		event.setData(map);
+		return event;
+	}
+
+	private static DesiredLRPResponse desiredLRP(String processGuid) {
+		DesiredLRPResponse desiredLRP = new DesiredLRPResponse();
+		desiredLRP.setProcessGuid(processGuid);
+		return desiredLRP;
+	}
+
+	private static ActualLRPResponse actualLRP(String processGuid, int index, String state, int tagIndex,
+			String domain, String cellId) {
+		ActualLRPResponse actualLRP = actualLRP(processGuid, index, state, tagIndex);
+		actualLRP.setDomain(domain);
+		actualLRP.setCellId(cellId);
+		return actualLRP;
+	}
+
+	private static ActualLRPResponse actualLRP(String processGuid, int index, String state, int tagIndex) {
+		ActualLRPResponse actualLRP = new ActualLRPResponse();
+		actualLRP.setProcessGuid(processGuid);
+		actualLRP.setIndex(index);
+		actualLRP.setState(state);
+		ModificationTag tag = new ModificationTag();
+		tag.setEpoch("e");
+		tag.setIndex(tagIndex);
+		actualLRP.setModificationTag(tag);
+		return actualLRP;
+	}
+}
@@ -19,18 +19,27 @@ package org.cloudfoundry.receptor.client;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.cloudfoundry.receptor.actions.RunAction;
 import org.cloudfoundry.receptor.commands.ActualLRPResponse;
@@ -40,6 +49,7 @@ import org.cloudfoundry.receptor.commands.DesiredLRPResponse;
 import org.cloudfoundry.receptor.commands.DesiredLRPUpdateRequest;
 import org.cloudfoundry.receptor.commands.TaskCreateRequest;
 import org.cloudfoundry.receptor.commands.TaskResponse;
+import org.cloudfoundry.receptor.events.SharedEventDispatchers;
 import org.cloudfoundry.receptor.support.EgressRule;
 import org.cloudfoundry.receptor.support.EgressRule.PortRange;
 import org.junit.Before;
@@ -47,11 +57,19 @@ import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestOperations;
 
 /**
@@ -389,6 +407,152 @@ public class ReceptorClientTests {
 		assertEquals("bar", domains[1]);
 	}
 
+	@Test
+	public void testClosingSharedClientTwiceReleasesItsReferenceOnce() {
+		String url = BASE_URL + "/events";
+		ReceptorClient first = new ReceptorClient("localhost", restTemplate, true);
+		ReceptorClient second = new ReceptorClient("localhost", restTemplate, true);
+		assertEquals(2, SharedEventDispatchers.getReferenceCount(url, restTemplate));
+
+		assertTrue(first.close(1, TimeUnit.SECONDS));
+		assertTrue(first.close(1, TimeUnit.SECONDS));
+		assertEquals(1, SharedEventDispatchers.getReferenceCount(url, restTemplate));
+		second.close(1, TimeUnit.SECONDS);
+		assertEquals(0, SharedEventDispatchers.getReferenceCount(url, restTemplate));
+	}
+
+	@Test
+	public void testResponseCachingRevalidatesListRequests() throws Exception {
+		final List<HttpHeaders> requestHeaders = new ArrayList<HttpHeaders>();
+		final List<ClientHttpResponse> responses = new ArrayList<ClientHttpResponse>();
+		responses.add(response(HttpStatus.OK, "\"v1\"", "[{\"cell_id\":\"id\",\"zone\":\"zone\",\"unknown\":1}]"));
+		responses.add(response(HttpStatus.NOT_MODIFIED, "\"v1\"", ""));
+		responses.add(response(HttpStatus.OK, null, "[{\"cell_id\":\"id\",\"zone\":\"zone\",\"unknown\":1}]"));
+		responses.add(response(HttpStatus.OK, null, "[{\"cell_id\":\"id\",\"zone\":\"other\"}]"));
+		doAnswer(new Answer<Object>() {
+
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				ClientHttpRequest request = mock(ClientHttpRequest.class);
+				HttpHeaders headers = new HttpHeaders();
+				when(request.getHeaders()).thenReturn(headers);
+				((RequestCallback) invocation.getArguments()[2]).doWithRequest(request);
+				requestHeaders.add(headers);
+				return ((ResponseExtractor) invocation.getArguments()[3]).extractData(responses.remove(0));
+			}
+		}).when(restTemplate).execute(eq("{baseUrl}/cells"), eq(HttpMethod.GET), any(RequestCallback.class),
+				any(ResponseExtractor.class), eq(BASE_URL));
+		receptorClient.setResponseCaching(true);
+
+		List<CellResponse> cells = receptorClient.getCells();
+		assertEquals("zone", cells.get(0).getZone());
+		assertSame(cells, receptorClient.getCells());
+		assertEquals("\"v1\"", requestHeaders.get(1).getIfNoneMatch().get(0));
+		assertSame(cells, receptorClient.getCells());
+		assertEquals("other", receptorClient.getCells().get(0).getZone());
+		assertEquals(0, requestHeaders.get(3).getIfNoneMatch().size());
+	}
+
+	@Test
+	public void testResponseCachingRetriesNotModifiedWithoutCachedResult() throws Exception {
+		final List<HttpHeaders> requestHeaders = new ArrayList<HttpHeaders>();
+		final List<ClientHttpResponse> responses = new ArrayList<ClientHttpResponse>();
+		responses.add(response(HttpStatus.NOT_MODIFIED, "\"v1\"", ""));
+		responses.add(response(HttpStatus.OK, "\"v1\"", "[{\"cell_id\":\"id\",\"zone\":\"zone\"}]"));
+		responses.add(response(HttpStatus.NOT_MODIFIED, null, ""));
+		responses.add(response(HttpStatus.NOT_MODIFIED, null, ""));
+		doAnswer(new Answer<Object>() {
+
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				ClientHttpRequest request = mock(ClientHttpRequest.class);
+				HttpHeaders headers = new HttpHeaders();
+				when(request.getHeaders()).thenReturn(headers);
+				((RequestCallback) invocation.getArguments()[2]).doWithRequest(request);
+				requestHeaders.add(headers);
+				return ((ResponseExtractor) invocation.getArguments()[3]).extractData(responses.remove(0));
+			}
+		}).when(restTemplate).execute(eq("{baseUrl}/cells"), eq(HttpMethod.GET), any(RequestCallback.class),
+				any(ResponseExtractor.class), eq(BASE_URL));
+		receptorClient.setResponseCaching(true);
+
+		assertEquals("zone", receptorClient.getCells().get(0).getZone());
+		assertEquals("no-cache", requestHeaders.get(1).getCacheControl());
+		assertEquals(0, requestHeaders.get(1).getIfNoneMatch().size());
+
+		receptorClient.setResponseCaching(false);
+		receptorClient.setResponseCaching(true);
+		try {
+			receptorClient.getCells();
+			fail("expected RestClientException");
+		}
+		catch (RestClientException e) {
+			assertEquals(4, requestHeaders.size());
+		}
+	}
+
+	@Test
+	public void testResponseCachingReturnsUnmodifiableResults() throws Exception {
+		doAnswer(new Answer<Object>() {
+
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				return ((ResponseExtractor) invocation.getArguments()[3]).extractData(response(HttpStatus.OK, null, "[\"d1\"]"));
+			}
+		}).when(restTemplate).execute(eq("{baseUrl}/domains"), eq(HttpMethod.GET), any(RequestCallback.class),
+				any(ResponseExtractor.class), eq(BASE_URL));
+		doAnswer(new Answer<Object>() {
+
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				return ((ResponseExtractor) invocation.getArguments()[3]).extractData(response(HttpStatus.OK, null, "[]"));
+			}
+		}).when(restTemplate).execute(eq("{baseUrl}/desired_lrps?domain={domain}"), eq(HttpMethod.GET),
+				any(RequestCallback.class), any(ResponseExtractor.class), eq(BASE_URL), any(String.class));
+		receptorClient.setResponseCaching(true);
+
+		String[] domains = receptorClient.getDomains();
+		domains[0] = "changed";
+		assertEquals("d1", receptorClient.getDomains()[0]);
+		try {
+			receptorClient.getDesiredLRPsByDomain("d1").add(new DesiredLRPResponse());
+			fail("expected UnsupportedOperationException");
+		}
+		catch (UnsupportedOperationException e) {
+		}
+	}
+
+	@Test
+	public void testResponseCacheKeepsMostRecentlyUsedResults() throws Exception {
+		doAnswer(new Answer<Object>() {
+
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				return ((ResponseExtractor) invocation.getArguments()[3]).extractData(response(HttpStatus.OK, null, "[]"));
+			}
+		}).when(restTemplate).execute(eq("{baseUrl}/desired_lrps?domain={domain}"), eq(HttpMethod.GET),
+				any(RequestCallback.class), any(ResponseExtractor.class), eq(BASE_URL), any(String.class));
+		ConditionalGetCache cache = new ConditionalGetCache(restTemplate, null);
+
+		for (int i = 0; i <= ConditionalGetCache.MAX_ENTRIES; i++) {
+			cache.get("{baseUrl}/desired_lrps?domain={domain}", ReceptorClient.DESIRED_LRP_RESPONSE_LIST_TYPE.getType(),
+					BASE_URL, "d" + i);
+		}
+		assertEquals(ConditionalGetCache.MAX_ENTRIES, cache.size());
+	}
+
+	private static ClientHttpResponse response(HttpStatus status, String etag, String body) throws Exception {
+		ClientHttpResponse response = mock(ClientHttpResponse.class);
+		HttpHeaders headers = new HttpHeaders();
+		if (etag != null) {
+			headers.setETag(etag);
+		}
+		when(response.getStatusCode()).thenReturn(status);
+		when(response.getHeaders()).thenReturn(headers);
+		when(response.getBody()).thenReturn(new ByteArrayInputStream(body.getBytes("UTF-8")));
+		return response;
+	}
+
 	private void assertTaskResponse(String taskGuid, String logGuid, TaskResponse response) {
 		assertEquals(taskGuid, response.getTaskGuid());
 		assertEquals("/out.txt", response.getResultFile());
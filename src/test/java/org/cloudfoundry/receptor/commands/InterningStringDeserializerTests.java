@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.commands;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+
+import org.cloudfoundry.receptor.support.StringInterner;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class InterningStringDeserializerTests {
+
+	private final ObjectMapper mapper = new ObjectMapper()
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+			.registerModule(InterningStringDeserializer.module(new StringInterner(16)));
+
+	@Test
+	public void testRepeatedValuesShareOneInstance() throws Exception {
+		String json = "[{\"process_guid\":\"p1\",\"domain\":\"lattice\",\"cell_id\":\"cell-a\",\"index\":0,\"state\":\"RUNNING\"},"
+				+ "{\"process_guid\":\"p1\",\"domain\":\"lattice\",\"cell_id\":\"cell-a\",\"index\":1,\"state\":\"RUNNING\"}]";
+		List<ActualLRPResponse> actualLRPs = mapper.readValue(json, new TypeReference<List<ActualLRPResponse>>() {});
+
+		assertEquals(2, actualLRPs.size());
+		assertEquals("lattice", actualLRPs.get(0).getDomain());
+		assertSame(actualLRPs.get(0).getDomain(), actualLRPs.get(1).getDomain());
+		assertSame(actualLRPs.get(0).getCellId(), actualLRPs.get(1).getCellId());
+		assertSame(actualLRPs.get(0).getProcessGuid(), actualLRPs.get(1).getProcessGuid());
+		assertNull(actualLRPs.get(0).getAddress());
+	}
+
+	@Test
+	public void testLongValuesAndArraysAreDeserialized() throws Exception {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i <= InterningStringDeserializer.MAX_INTERNED_LENGTH; i++) {
+			builder.append('x');
+		}
+		String reason = builder.toString();
+		String[] values = mapper.readValue("[\"" + reason + "\",\"" + reason + "\",\"a\",\"a\"]", String[].class);
+
+		assertEquals(reason, values[0]);
+		assertNotSame(values[0], values[1]);
+		assertSame(values[2], values[3]);
+	}
+}
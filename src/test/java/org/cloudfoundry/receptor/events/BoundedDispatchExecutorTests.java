@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.receptor.events.BoundedDispatchExecutor.OverflowPolicy;
+import org.junit.Test;
+
+public class BoundedDispatchExecutorTests {
+
+	private final CountDownLatch blocker = new CountDownLatch(1);
+
+	private final List<String> completed = new CopyOnWriteArrayList<String>();
+
+	@Test
+	public void testDropNewest() throws Exception {
+		BoundedDispatchExecutor executor = blockedExecutor(OverflowPolicy.DROP_NEWEST);
+		executor.execute(new Task("a", null));
+		executor.execute(new Task("b", null));
+		executor.execute(new Task("c", null));
+
+		assertEquals(2, executor.getQueueDepth());
+		assertEquals(1, executor.getDroppedCount());
+		assertCompleted(executor, "a", "b");
+	}
+
+	@Test
+	public void testDropOldest() throws Exception {
+		BoundedDispatchExecutor executor = blockedExecutor(OverflowPolicy.DROP_OLDEST);
+		executor.execute(new Task("a", null));
+		executor.execute(new Task("b", null));
+		executor.execute(new Task("c", null));
+
+		assertEquals(1, executor.getDroppedCount());
+		assertCompleted(executor, "b", "c");
+	}
+
+	@Test
+	public void testDropOldestKeepsQueuedRequiredTasks() throws Exception {
+		BoundedDispatchExecutor executor = blockedExecutor(OverflowPolicy.DROP_OLDEST);
+		executor.execute(new RequiredTask("a"));
+		executor.execute(new Task("b", null));
+		executor.execute(new Task("c", null));
+
+		assertEquals(1, executor.getDroppedCount());
+		assertCompleted(executor, "a", "c");
+	}
+
+	@Test
+	public void testConflate() throws Exception {
+		BoundedDispatchExecutor executor = blockedExecutor(OverflowPolicy.CONFLATE);
+		executor.execute(new Task("a1", "a"));
+		executor.execute(new Task("b1", "b"));
+		executor.execute(new Task("a2", "a"));
+		executor.execute(new Task("a3", "a"));
+
+		assertEquals(2, executor.getQueueDepth());
+		assertEquals(2, executor.getConflatedCount());
+		assertCompleted(executor, "a3", "b1");
+	}
+
+	private BoundedDispatchExecutor blockedExecutor(OverflowPolicy policy) throws InterruptedException {
+		BoundedDispatchExecutor executor = new BoundedDispatchExecutor(1, 2, policy);
+		final CountDownLatch started = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					blocker.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		return executor;
+	}
+
+	private void assertCompleted(BoundedDispatchExecutor executor, String... names) throws InterruptedException {
+		blocker.countDown();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (completed.size() < names.length && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(Arrays.asList(names), completed);
+		assertEquals(0, executor.getQueueDepth());
+	}
+
+	private class RequiredTask implements BoundedDispatchExecutor.RequiredTask {
+
+		private final String name;
+
+		private RequiredTask(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public void run() {
+			completed.add(name);
+		}
+	}
+
+	private class Task implements BoundedDispatchExecutor.ConflatableTask {
+
+		private final String name;
+
+		private final String key;
+
+		private Task(String name, String key) {
+			this.name = name;
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			completed.add(name);
+		}
+
+		@Override
+		public Object getConflationKey() {
+			return key;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cloudfoundry.receptor.commands.ActualLRPResponse;
+import org.cloudfoundry.receptor.events.EventDispatcherTests.LatchedListener;
+import org.junit.Test;
+
+public class ConflatingActualLRPChangedListenerTests {
+
+	@Test
+	public void testChangesWithinWindowAreMerged() throws Exception {
+		LatchedListener<ActualLRPChangedEvent> delegate = new LatchedListener<ActualLRPChangedEvent>(2) {};
+		ConflatingActualLRPChangedListener listener = new ConflatingActualLRPChangedListener(delegate, 200);
+		listener.onEvent(changed(1, "p1", "UNCLAIMED", "CLAIMED"));
+		listener.onEvent(changed(2, "p2", "UNCLAIMED", "CLAIMED"));
+		listener.onEvent(changed(3, "p1", "CLAIMED", "RUNNING"));
+		listener.onEvent(changed(4, "p1", "RUNNING", "CRASHED"));
+
+		assertTrue(delegate.await());
+		assertEquals(2, listener.getConflatedCount());
+		assertEquals(2, delegate.events.size());
+		ActualLRPChangedEvent merged = delegate.events.get(0);
+		assertEquals(4, merged.getId());
+		assertEquals("UNCLAIMED", merged.getActualLRPBefore().getState());
+		assertEquals("CRASHED", merged.getActualLRPAfter().getState());
+		assertEquals(2, delegate.events.get(1).getId());
+		listener.close();
+	}
+
+	@Test
+	public void testChangeAfterWindowClosedOpensNewWindow() throws Exception {
+		LatchedListener<ActualLRPChangedEvent> delegate = new LatchedListener<ActualLRPChangedEvent>(1) {};
+		ConflatingActualLRPChangedListener listener = new ConflatingActualLRPChangedListener(delegate, 50);
+		listener.onEvent(changed(1, "p1", "UNCLAIMED", "CLAIMED"));
+		assertTrue(delegate.await());
+
+		delegate.events.clear();
+		listener.onEvent(changed(2, "p1", "CLAIMED", "RUNNING"));
+		listener.onEvent(changed(3, "p1", "RUNNING", "CRASHED"));
+		Thread.sleep(200);
+		listener.close();
+
+		assertEquals(1, delegate.events.size());
+		assertEquals(3, delegate.events.get(0).getId());
+		assertEquals("CLAIMED", delegate.events.get(0).getActualLRPBefore().getState());
+		assertEquals(1, listener.getConflatedCount());
+	}
+
+	@Test
+	public void testChangesAfterCloseAreDeliveredImmediately() {
+		LatchedListener<ActualLRPChangedEvent> delegate = new LatchedListener<ActualLRPChangedEvent>(1) {};
+		ConflatingActualLRPChangedListener listener = new ConflatingActualLRPChangedListener(delegate, 60000);
+		listener.close();
+		listener.onEvent(changed(1, "p1", "UNCLAIMED", "CLAIMED"));
+		listener.onEvent(changed(2, "p1", "CLAIMED", "RUNNING"));
+
+		assertEquals(2, delegate.events.size());
+		assertEquals(0, listener.getConflatedCount());
+	}
+
+	@Test
+	public void testEventsWithoutKeyAreNotHeld() {
+		LatchedListener<ActualLRPChangedEvent> delegate = new LatchedListener<ActualLRPChangedEvent>(1) {};
+		ConflatingActualLRPChangedListener listener = new ConflatingActualLRPChangedListener(delegate, 60000);
+		listener.onEvent(new ActualLRPChangedEvent(1));
+
+		assertEquals(1, delegate.events.size());
+		listener.close();
+	}
+
+	private static ActualLRPChangedEvent changed(int id, String processGuid, String before, String after) {
+		Map<String, ActualLRPResponse> data = new HashMap<String, ActualLRPResponse>();
+		data.put("actual_lrp_before", actualLRP(processGuid, before));
+		data.put("actual_lrp_after", actualLRP(processGuid, after));
+		ActualLRPChangedEvent event = new ActualLRPChangedEvent(id);
+		event.setData(data);
+		return event;
+	}
+
+	private static ActualLRPResponse actualLRP(String processGuid, String state) {
+		ActualLRPResponse actualLRP = new ActualLRPResponse();
+		actualLRP.setProcessGuid(processGuid);
+		actualLRP.setState(state);
+		return actualLRP;
+	}
+}
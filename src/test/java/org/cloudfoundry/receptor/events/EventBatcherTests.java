@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class EventBatcherTests {
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+	private final ExecutorService flusher = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		scheduler.shutdownNow();
+		flusher.shutdownNow();
+	}
+
+	@Test
+	public void testFullListenerDoesNotHoldUpOtherLingerTimeouts() throws Exception {
+		final CountDownLatch slowStarted = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		EventBatcher slow = new EventBatcher(new BatchEventListener<ReceptorEvent<?>>() {
+
+			@Override
+			public void onEvents(List<ReceptorEvent<?>> events) {
+				slowStarted.countDown();
+				try {
+					release.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 2, 10, executor, scheduler, flusher);
+		final CountDownLatch fastDelivered = new CountDownLatch(1);
+		EventBatcher fast = new EventBatcher(new BatchEventListener<ReceptorEvent<?>>() {
+
+			@Override
+			public void onEvents(List<ReceptorEvent<?>> events) {
+				assertEquals(1, events.size());
+				fastDelivered.countDown();
+			}
+		}, 100, 10, executor, scheduler, flusher);
+
+		int id = 0;
+		slow.onEvent(new ActualLRPCreatedEvent(++id));
+		slow.onEvent(new ActualLRPCreatedEvent(++id));
+		assertTrue(slowStarted.await(1, TimeUnit.SECONDS));
+		for (int i = 0; i < EventBatcher.MAX_PENDING_BATCHES * 2; i++) {
+			slow.onEvent(new ActualLRPCreatedEvent(++id));
+		}
+		// the ready queue is full, so this batch cannot be flushed when its linger expires
+		slow.onEvent(new ActualLRPCreatedEvent(++id));
+		fast.onEvent(new ActualLRPCreatedEvent(++id));
+
+		assertTrue(fastDelivered.await(1, TimeUnit.SECONDS));
+		release.countDown();
+	}
+
+	@Test
+	public void testTimedFlushGivesUpWhenReadyQueueStaysFull() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		EventBatcher batcher = new EventBatcher(new BatchEventListener<ReceptorEvent<?>>() {
+
+			@Override
+			public void onEvents(List<ReceptorEvent<?>> events) {
+				started.countDown();
+				try {
+					release.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 2, 60000, executor, scheduler, flusher);
+		assertTrue(batcher.flush(0, TimeUnit.MILLISECONDS));
+
+		int id = 0;
+		batcher.onEvent(new ActualLRPCreatedEvent(++id));
+		batcher.onEvent(new ActualLRPCreatedEvent(++id));
+		assertTrue(started.await(1, TimeUnit.SECONDS));
+		for (int i = 0; i < EventBatcher.MAX_PENDING_BATCHES * 2; i++) {
+			batcher.onEvent(new ActualLRPCreatedEvent(++id));
+		}
+		batcher.onEvent(new ActualLRPCreatedEvent(++id));
+
+		assertFalse(batcher.flush(50, TimeUnit.MILLISECONDS));
+		release.countDown();
+		assertTrue(batcher.flush(1, TimeUnit.SECONDS));
+	}
+}
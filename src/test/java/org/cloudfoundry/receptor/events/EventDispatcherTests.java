@@ -0,0 +1,684 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cloudfoundry.receptor.commands.ActualLRPResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestOperations;
+
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class EventDispatcherTests {
+
+	private static final String URL = "http://localhost/v1/events";
+
+	private static final String ACTUAL_LRP_DATA = "{\"actual_lrp\":{\"process_guid\":\"p1\",\"index\":0,\"state\":\"RUNNING\"}}";
+
+	@Mock
+	private RestOperations restTemplate;
+
+	private final List<HttpHeaders> requestHeaders = new CopyOnWriteArrayList<HttpHeaders>();
+
+	private final CountDownLatch connectLatch = new CountDownLatch(1);
+
+	private final List<EventDispatcher> dispatchers = new ArrayList<EventDispatcher>();
+
+	@Before
+	public void setUp() {
+		MockitoAnnotations.initMocks(this);
+	}
+
+	@After
+	public void tearDown() {
+		for (EventDispatcher dispatcher : dispatchers) {
+			dispatcher.close(1, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void testLastEventIdSentOnReconnect() throws Exception {
+		stubEventStreams(event(1, ActualLRPCreatedEvent.TYPE) + event(2, ActualLRPCreatedEvent.TYPE), event(3, ActualLRPCreatedEvent.TYPE));
+		EventDispatcher dispatcher = open(new EventDispatcher(URL, restTemplate));
+		LatchedListener<ActualLRPCreatedEvent> listener = new LatchedListener<ActualLRPCreatedEvent>(3) {};
+		dispatcher.addListener(listener);
+		connect();
+
+		assertTrue(listener.await());
+		assertNull(requestHeaders.get(0).getFirst(EventDispatcher.LAST_EVENT_ID_HEADER));
+		assertEquals("2", requestHeaders.get(1).getFirst(EventDispatcher.LAST_EVENT_ID_HEADER));
+		assertEquals(Integer.valueOf(3), dispatcher.getLastEventId());
+	}
+
+	@Test
+	public void testGapListenerInvokedForNonContiguousIds() throws Exception {
+		stubEventStreams(event(1, ActualLRPCreatedEvent.TYPE), event(5, ActualLRPCreatedEvent.TYPE));
+		EventDispatcher dispatcher = open(new EventDispatcher(URL, restTemplate));
+		final CountDownLatch latch = new CountDownLatch(1);
+		final int[] gap = new int[2];
+		dispatcher.addGapListener(new EventGapListener() {
+
+			@Override
+			public void onGap(int lastEventId, int nextEventId) {
+				gap[0] = lastEventId;
+				gap[1] = nextEventId;
+				latch.countDown();
+			}
+		});
+		dispatcher.addListener(new LatchedListener<ActualLRPCreatedEvent>(2) {});
+		connect();
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(1, gap[0]);
+		assertEquals(5, gap[1]);
+	}
+
+	@Test
+	public void testListenersReceiveOnlyDeclaredEventTypes() throws Exception {
+		stubEventStreams(event(1, ActualLRPCreatedEvent.TYPE) + event(2, ActualLRPRemovedEvent.TYPE) + event(3, ActualLRPCreatedEvent.TYPE));
+		EventDispatcher dispatcher = open(new EventDispatcher(URL, restTemplate));
+		LatchedListener<ActualLRPCreatedEvent> createdListener = new LatchedListener<ActualLRPCreatedEvent>(2) {};
+		LatchedListener<ActualLRPRemovedEvent> removedListener = new LatchedListener<ActualLRPRemovedEvent>(1) {};
+		LatchedListener<ReceptorEvent<?>> wildcardListener = new LatchedListener<ReceptorEvent<?>>(3) {};
+		dispatcher.addListener(createdListener);
+		dispatcher.addListener(removedListener);
+		dispatcher.addListener(wildcardListener);
+		connect();
+
+		assertTrue(wildcardListener.await());
+		assertTrue(createdListener.await());
+		assertTrue(removedListener.await());
+		assertEquals(2, createdListener.events.size());
+		assertEquals(1, removedListener.events.size());
+		assertEquals(2, removedListener.events.get(0).getId());
+	}
+
+	@Test
+	public void testOrderedDispatchPreservesOrderPerLRP() throws Exception {
+		StringBuilder stream = new StringBuilder();
+		for (int id = 1; id <= 200; id++) {
+			String data = String.format("{\"actual_lrp\":{\"process_guid\":\"p%d\",\"index\":0,\"state\":\"RUNNING\"}}", id % 5);
+			stream.append(event(id, ActualLRPCreatedEvent.TYPE, data));
+		}
+		stubEventStreams(stream.toString());
+		EventDispatcher dispatcher = open(new EventDispatcher(URL, restTemplate, new OrderedDispatchExecutor(4)));
+		LatchedListener<ActualLRPCreatedEvent> listener = new LatchedListener<ActualLRPCreatedEvent>(200) {};
+		dispatcher.addListener(listener);
+		connect();
+
+		assertTrue(listener.await());
+		int[] lastIds = new int[5];
+		for (ActualLRPCreatedEvent event : listener.events) {
+			int lrp = event.getId() % 5;
+			assertTrue(event.getId() > lastIds[lrp]);
+			lastIds[lrp] = event.getId();
+			assertTrue("ordering key bound the event data", event.getRawData() != null);
+		}
+		ActualLRPCreatedEvent event = listener.events.get(0);
+		String key = event.getKey();
+		assertEquals("p" + (event.getId() % 5) + "/0", key);
+		event.getData();
+		assertSame(key, event.getKey());
+		ActualLRPResponse actualLRP = new ActualLRPResponse();
+		actualLRP.setProcessGuid("other");
+		event.setData(Collections.singletonMap("actual_lrp", actualLRP));
+		assertEquals("other/0", event.getKey());
+	}
+
+	@Test
+	public void testFilteredListener() throws Exception {
+		String changed = "{\"actual_lrp_before\":{\"process_guid\":\"p%1$d\",\"domain\":\"%2$s\",\"ports\":[{\"host_port\":1}],\"state\":\"CLAIMED\"},"
+				+ "\"actual_lrp_after\":{\"process_guid\":\"p%1$d\",\"domain\":\"%2$s\",\"state\":\"%3$s\"}}";
+		stubEventStreams(event(1, ActualLRPChangedEvent.TYPE, String.format(changed, 1, "other", "RUNNING"))
+				+ event(2, ActualLRPChangedEvent.TYPE, String.format(changed, 2, "mine", "CRASHED"))
+				+ event(3, DesiredLRPCreatedEvent.TYPE, "{\"desired_lrp\":{\"process_guid\":\"p3\",\"domain\":\"mine\"}}")
+				+ event(4, ActualLRPChangedEvent.TYPE, String.format(changed, 4, "mine", "RUNNING")));
+		EventDispatcher dispatcher = open(new EventDispatcher(URL, restTemplate));
+		EventFilter filter = new EventFilter();
+		filter.setDomain("mine");
+		filter.setState("RUNNING");
+		LatchedListener<ReceptorEvent<?>> filteredListener = new LatchedListener<ReceptorEvent<?>>(1) {};
+		LatchedListener<ReceptorEvent<?>> listener = new LatchedListener<ReceptorEvent<?>>(4) {};
+		dispatcher.addListener(filteredListener, filter);
+		dispatcher.addListener(listener);
+		connect();
+
+		assertTrue(listener.await());
+		assertTrue(filteredListener.await());
+		assertEquals(1, filteredListener.events.size());
+		assertEquals(4, filteredListener.events.get(0).getId());
+		assertEquals("RUNNING", ((ActualLRPChangedEvent) filteredListener.events.get(0)).getActualLRPAfter().getState());
+	}
+
+	@Test
+	public void testBatchListener() throws Exception {
+		StringBuilder stream = new StringBuilder();
+		for (int id = 1; id <= 5; id++) {
+			stream.append(event(id, ActualLRPCreatedEvent.TYPE));
+		}
+		stubEventStreams(stream.toString());
+		EventDispatcher dispatcher = open(new EventDispatcher(URL, restTemplate));
+		final List<List<ActualLRPCreatedEvent>> batches = new CopyOnWriteArrayList<List<ActualLRPCreatedEvent>>();
+		final CountDownLatch latch = new CountDownLatch(5);
+		dispatcher.addBatchListener(new BatchEventListener<ActualLRPCreatedEvent>() {
+
+			@Override
+			public void onEvents(List<ActualLRPCreatedEvent> events) {
+				batches.add(events);
+				for (int i = 0; i < events.size(); i++) {
+					latch.countDown();
+				}
+			}
+		}, 2, 100);
+		connect();
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(3, batches.size());
+		assertEquals(2, batches.get(0).size());
+		assertEquals(2, batches.get(1).size());
+		assertEquals(5, batches.get(2).get(0).getId());
+	}
+
+	@Test
+	public void testRingBufferDeliversInOrderToEveryListener() throws Exception {
+		StringBuilder stream = new StringBuilder();
+		for (int id = 1; id <= 50; id++) {
+			stream.append(event(id, ActualLRPCreatedEvent.TYPE));
+		}
+		stubEventStreams(stream.toString());
+		EventRingBuffer ringBuffer = new EventRingBuffer(8, 2);
+		EventDispatcher dispatcher = open(new EventDispatcher(URL, restTemplate, ringBuffer));
+		List<LatchedListener<ActualLRPCreatedEvent>> listeners = new ArrayList<LatchedListener<ActualLRPCreatedEvent>>();
+		for (int i = 0; i < 3; i++) {
+			LatchedListener<ActualLRPCreatedEvent> listener = new LatchedListener<ActualLRPCreatedEvent>(50) {};
+			dispatcher.addListener(listener);
+			listeners.add(listener);
+		}
+		connect();
+
+		for (LatchedListener<ActualLRPCreatedEvent> listener : listeners) {
+			assertTrue(listener.await());
+			for (int i = 0; i < 50; i++) {
+				assertEquals(i + 1, listener.events.get(i).getId());
+			}
+		}
+		assertEquals(49, ringBuffer.getCursor());
+	}
+
+	@Test
+	public void testInlineListenerRunsOnReaderThread() throws Exception {
+		stubEventStreams(event(1, ActualLRPCreatedEvent.TYPE) + event(2, ActualLRPCreatedEvent.TYPE));
+		EventDispatcher dispatcher = open(new EventDispatcher(URL, restTemplate));
+		dispatcher.setInlineBlockingThreshold(1);
+		final List<String> threads = new CopyOnWriteArrayList<String>();
+		LatchedListener<ActualLRPCreatedEvent> listener = new LatchedListener<ActualLRPCreatedEvent>(2) {
+
+			@Override
+			public void onEvent(ActualLRPCreatedEvent event) {
+				threads.add(Thread.currentThread().getName());
+				if (event.getId() == 1) {
+					throw new IllegalStateException("test");
+				}
+				try {
+					Thread.sleep(5);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.onEvent(event);
+			}
+		};
+		LatchedListener<ActualLRPCreatedEvent> last = new LatchedListener<ActualLRPCreatedEvent>(2) {};
+		dispatcher.addListener(listener, DispatchMode.INLINE);
+		dispatcher.addListener(last, DispatchMode.INLINE);
+		connect();
+
+		assertTrue(last.await());
+		assertEquals(2, threads.size());
+		assertTrue(threads.get(0).startsWith("receptor-event-subscriber-"));
+		assertEquals(1, dispatcher.getListenerStats(listener).getErrorCount());
+		dispatcher.close(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testPublisherReadsOnlyAsFastAsSubscriberRequests() throws Exception {
+		StringBuilder stream = new StringBuilder();
+		for (int id = 1; id <= 10; id++) {
+			stream.append(event(id, ActualLRPCreatedEvent.TYPE));
+		}
+		stubEventStreams(stream.toString());
+		final EventDispatcher dispatcher = open(new EventDispatcher(URL, restTemplate));
+		EventPublisher publisher = new EventPublisher(dispatcher, 2);
+		final List<Integer> received = new CopyOnWriteArrayList<Integer>();
+		final CountDownLatch completed = new CountDownLatch(1);
+		final Subscription[] subscription = new Subscription[1];
+		publisher.subscribe(new Subscriber<ReceptorEvent<?>>() {
+
+			@Override
+			public void onSubscribe(Subscription s) {
+				subscription[0] = s;
+				s.request(3);
+			}
+
+			@Override
+			public void onNext(ReceptorEvent<?> event) {
+				received.add(event.getId());
+			}
+
+			@Override
+			public void onError(Throwable t) {
+			}
+
+			@Override
+			public void onComplete() {
+				completed.countDown();
+			}
+		});
+		connect();
+
+		Thread.sleep(200);
+		assertEquals(Arrays.asList(1, 2, 3), received);
+		assertEquals(Integer.valueOf(6), dispatcher.getLastEventId());
+		subscription[0].request(Long.MAX_VALUE);
+		for (int i = 0; i < 50 && received.size() < 10; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(10, received.size());
+		publisher.complete();
+		assertTrue(completed.await(5, TimeUnit.SECONDS));
+		dispatcher.close(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testSlowAndFailingListenersAreQuarantined() throws Exception {
+		StringBuilder stream = new StringBuilder();
+		for (int id = 1; id <= 20; id++) {
+			stream.append(event(id, ActualLRPCreatedEvent.TYPE));
+		}
+		stubEventStreams(stream.toString());
+		EventDispatcher dispatcher = open(new EventDispatcher(URL, restTemplate));
+		dispatcher.setListenerIsolationPolicy(new ListenerIsolationPolicy(100, 10, 3, 3));
+		final List<Object> quarantined = new CopyOnWriteArrayList<Object>();
+		dispatcher.addQuarantineListener(new QuarantineListener() {
+
+			@Override
+			public void onQuarantined(Object listener, ListenerStats stats) {
+				quarantined.add(listener);
+			}
+		});
+		EventListener<ActualLRPCreatedEvent> slow = new EventListener<ActualLRPCreatedEvent>() {
+
+			@Override
+			public void onEvent(ActualLRPCreatedEvent event) {
+				try {
+					Thread.sleep(50);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		EventListener<ActualLRPCreatedEvent> failing = new EventListener<ActualLRPCreatedEvent>() {
+
+			@Override
+			public void onEvent(ActualLRPCreatedEvent event) {
+				throw new IllegalStateException("test");
+			}
+		};
+		LatchedListener<ActualLRPCreatedEvent> fast = new LatchedListener<ActualLRPCreatedEvent>(20) {};
+		dispatcher.addListener(slow);
+		dispatcher.addListener(failing);
+		dispatcher.addListener(fast);
+		connect();
+
+		assertTrue(fast.await());
+		assertTrue(dispatcher.close(5, TimeUnit.SECONDS));
+		assertEquals(2, quarantined.size());
+		assertTrue(quarantined.contains(slow));
+		assertTrue(quarantined.contains(failing));
+		ListenerStats slowStats = dispatcher.getListenerStats(slow);
+		assertTrue(slowStats.isQuarantined());
+		assertEquals(3, slowStats.getInvocationCount());
+		assertEquals(17, slowStats.getDroppedCount());
+		assertEquals(3, dispatcher.getListenerStats(failing).getErrorCount());
+		ListenerStats fastStats = dispatcher.getListenerStats(fast);
+		assertFalse(fastStats.isQuarantined());
+		assertEquals(20, fastStats.getInvocationCount());
+		assertTrue(dispatcher.releaseQuarantine(slow));
+		assertFalse(slowStats.isQuarantined());
+	}
+
+	@Test
+	public void testRemoveListenerAndClose() throws Exception {
+		stubEventStreams(event(1, ActualLRPCreatedEvent.TYPE));
+		EventDispatcher dispatcher = open(new EventDispatcher(URL, restTemplate));
+		LatchedListener<ActualLRPCreatedEvent> listener = new LatchedListener<ActualLRPCreatedEvent>(1) {};
+		dispatcher.addListener(listener);
+		connect();
+
+		assertTrue(listener.await());
+		assertTrue(dispatcher.removeListener(listener));
+		assertFalse(dispatcher.removeListener(listener));
+		assertTrue(dispatcher.close(5, TimeUnit.SECONDS));
+		try {
+			dispatcher.addListener(listener);
+			fail("expected IllegalStateException");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testStalledStreamIsReconnected() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		when(restTemplate.execute(eq(URL), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class))).thenAnswer(new Answer<Object>() {
+
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				int call = calls.getAndIncrement();
+				ClientHttpResponse response = mock(ClientHttpResponse.class);
+				if (call == 0) {
+					final CountDownLatch closed = new CountDownLatch(1);
+					final byte[] bytes = (": heartbeat\n" + event(1, ActualLRPCreatedEvent.TYPE)).getBytes("UTF-8");
+					when(response.getBody()).thenReturn(new ByteArrayInputStream(bytes) {
+
+						@Override
+						public synchronized int read(byte[] b, int off, int len) {
+							int read = super.read(b, off, len);
+							if (read < 0) {
+								try {
+									closed.await();
+								}
+								catch (InterruptedException e) {
+									Thread.currentThread().interrupt();
+								}
+							}
+							return read;
+						}
+					});
+					doAnswer(new Answer<Object>() {
+
+						@Override
+						public Object answer(InvocationOnMock invocation) {
+							closed.countDown();
+							return null;
+						}
+					}).when(response).close();
+				}
+				else if (call == 1) {
+					Thread.sleep(100);
+					when(response.getBody()).thenReturn(new ByteArrayInputStream(event(2, ActualLRPCreatedEvent.TYPE).getBytes("UTF-8")));
+				}
+				else {
+					Thread.sleep(Long.MAX_VALUE);
+				}
+				return ((ResponseExtractor<?>) invocation.getArguments()[3]).extractData(response);
+			}
+		});
+		EventDispatcher dispatcher = open(new EventDispatcher(URL, restTemplate));
+		dispatcher.setIdleTimeout(200);
+		final CountDownLatch resumed = new CountDownLatch(1);
+		final long[] stall = new long[2];
+		dispatcher.addStallListener(new StreamStallListener() {
+
+			@Override
+			public void onStalled(long idleMillis) {
+				stall[0] = idleMillis;
+			}
+
+			@Override
+			public void onResumed(long stalledMillis) {
+				stall[1] = stalledMillis;
+				resumed.countDown();
+			}
+		});
+		LatchedListener<ActualLRPCreatedEvent> listener = new LatchedListener<ActualLRPCreatedEvent>(2) {};
+		dispatcher.addListener(listener);
+
+		assertTrue(listener.await());
+		assertTrue(resumed.await(5, TimeUnit.SECONDS));
+		assertEquals(1, dispatcher.getStallCount());
+		assertEquals(1, dispatcher.getHeartbeatCount());
+		assertTrue(stall[0] >= 200);
+		assertTrue(stall[1] >= stall[0]);
+		assertEquals(stall[1], dispatcher.getLastStallDuration());
+		dispatcher.close(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testStreamClosedWithoutEventsCountsAsFailure() throws Exception {
+		stubEventStreams("", "", "", event(1, ActualLRPCreatedEvent.TYPE));
+		EventDispatcher dispatcher = open(new EventDispatcher(URL, restTemplate));
+		final AtomicInteger failures = new AtomicInteger();
+		dispatcher.setReconnectPolicy(new ReconnectPolicy(1, 1, 100, 0) {
+
+			@Override
+			synchronized void onFailure() {
+				failures.incrementAndGet();
+				super.onFailure();
+			}
+		});
+		LatchedListener<ActualLRPCreatedEvent> listener = new LatchedListener<ActualLRPCreatedEvent>(1) {};
+		dispatcher.addListener(listener);
+		connect();
+
+		assertTrue(listener.await());
+		assertEquals(3, failures.get());
+		assertEquals(0, dispatcher.getReconnectPolicy().getConsecutiveFailures());
+	}
+
+	@Test
+	public void testFailoverNotifiesGapAndDropsLastEventId() throws Exception {
+		final String standbyUrl = "http://standby/v1/events";
+		final String changed = "{\"actual_lrp\":{\"process_guid\":\"p1\",\"index\":0,\"modification_tag\":{\"epoch\":\"e\",\"index\":%d}}}";
+		when(restTemplate.execute(eq(URL), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class))).thenAnswer(new Answer<Object>() {
+
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				ClientHttpResponse response = mock(ClientHttpResponse.class);
+				String stream = event(1, ActualLRPChangedEvent.TYPE, String.format(changed, 1))
+						+ event(2, ActualLRPChangedEvent.TYPE, String.format(changed, 2));
+				when(response.getBody()).thenReturn(new ByteArrayInputStream(stream.getBytes("UTF-8")));
+				((ResponseExtractor<?>) invocation.getArguments()[3]).extractData(response);
+				throw new ResourceAccessException("connection reset");
+			}
+		});
+		when(restTemplate.execute(eq(standbyUrl), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class))).thenAnswer(new Answer<Object>() {
+
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				HttpHeaders headers = new HttpHeaders();
+				ClientHttpRequest request = mock(ClientHttpRequest.class);
+				when(request.getHeaders()).thenReturn(headers);
+				((RequestCallback) invocation.getArguments()[2]).doWithRequest(request);
+				requestHeaders.add(headers);
+				ClientHttpResponse response = mock(ClientHttpResponse.class);
+				String stream = event(7, ActualLRPChangedEvent.TYPE, String.format(changed, 2))
+						+ event(8, ActualLRPChangedEvent.TYPE, String.format(changed, 3));
+				when(response.getBody()).thenReturn(new ByteArrayInputStream(stream.getBytes("UTF-8")));
+				((ResponseExtractor<?>) invocation.getArguments()[3]).extractData(response);
+				Thread.sleep(Long.MAX_VALUE);
+				return null;
+			}
+		});
+		EventDispatcher dispatcher = open(new EventDispatcher(Arrays.asList(URL, standbyUrl), restTemplate));
+		final List<String> gaps = new CopyOnWriteArrayList<String>();
+		final CountDownLatch gapLatch = new CountDownLatch(1);
+		dispatcher.addGapListener(new EventGapListener() {
+
+			@Override
+			public void onGap(int lastEventId, int nextEventId) {
+				gaps.add(lastEventId + "-" + nextEventId);
+				gapLatch.countDown();
+			}
+		});
+		LatchedListener<ActualLRPChangedEvent> listener = new LatchedListener<ActualLRPChangedEvent>(4) {};
+		dispatcher.addListener(listener, DispatchMode.INLINE);
+
+		assertTrue(listener.await());
+		assertTrue(gapLatch.await(5, TimeUnit.SECONDS));
+		assertEquals(Collections.singletonList("2-7"), gaps);
+		assertEquals(Arrays.asList(1, 2, 7, 8), Arrays.asList(listener.events.get(0).getId(), listener.events.get(1).getId(),
+				listener.events.get(2).getId(), listener.events.get(3).getId()));
+		assertNull(requestHeaders.get(0).getFirst(EventDispatcher.LAST_EVENT_ID_HEADER));
+		assertEquals(standbyUrl, dispatcher.getCurrentUrl());
+		assertEquals(1, dispatcher.getFailoverCount());
+		dispatcher.close(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testSharedDispatcherFansOutAndIsReferenceCounted() throws Exception {
+		stubEventStreams(event(1, ActualLRPCreatedEvent.TYPE));
+		EventDispatcher first = SharedEventDispatchers.acquire(URL, restTemplate);
+		EventDispatcher second = SharedEventDispatchers.acquire(URL, restTemplate);
+		assertSame(first, second);
+		assertEquals(2, SharedEventDispatchers.getReferenceCount(URL, restTemplate));
+		LatchedListener<ActualLRPCreatedEvent> listener1 = new LatchedListener<ActualLRPCreatedEvent>(1) {};
+		LatchedListener<ActualLRPCreatedEvent> listener2 = new LatchedListener<ActualLRPCreatedEvent>(1) {};
+		first.addListener(listener1);
+		second.addListener(listener2);
+		connect();
+
+		assertTrue(listener1.await());
+		assertTrue(listener2.await());
+		verify(restTemplate, times(1)).execute(eq(URL), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class));
+		assertTrue(SharedEventDispatchers.release(first, 5, TimeUnit.SECONDS));
+		assertEquals(1, SharedEventDispatchers.getReferenceCount(URL, restTemplate));
+		assertTrue(SharedEventDispatchers.release(second, 5, TimeUnit.SECONDS));
+		assertEquals(0, SharedEventDispatchers.getReferenceCount(URL, restTemplate));
+		EventDispatcher third = SharedEventDispatchers.acquire(URL, restTemplate);
+		assertNotSame(first, third);
+		SharedEventDispatchers.release(third, 5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testSharedDispatcherIsKeyedByRestOperations() {
+		RestOperations otherRestTemplate = mock(RestOperations.class);
+		EventDispatcher first = SharedEventDispatchers.acquire(URL, restTemplate);
+		EventDispatcher other = SharedEventDispatchers.acquire(URL, otherRestTemplate);
+		assertNotSame(first, other);
+		assertEquals(1, SharedEventDispatchers.getReferenceCount(URL, restTemplate));
+		assertEquals(1, SharedEventDispatchers.getReferenceCount(URL, otherRestTemplate));
+		SharedEventDispatchers.release(first, 1, TimeUnit.SECONDS);
+		SharedEventDispatchers.release(other, 1, TimeUnit.SECONDS);
+	}
+
+	static String event(int id, String type) {
+		return event(id, type, ACTUAL_LRP_DATA);
+	}
+
+	static String event(int id, String type, String data) {
+		return String.format("id: %d%nevent: %s%ndata: %s%n%n", id, type, data);
+	}
+
+	/**
+	 * Once {@link #connect()} is called, each call to the event endpoint replays the
+	 * next stream, after which the subscriber blocks until interrupted.
+	 */
+	private void stubEventStreams(final String... streams) {
+		final AtomicInteger calls = new AtomicInteger();
+		when(restTemplate.execute(eq(URL), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class))).thenAnswer(new Answer<Object>() {
+
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				connectLatch.await();
+				int call = calls.getAndIncrement();
+				if (call >= streams.length) {
+					Thread.sleep(Long.MAX_VALUE);
+				}
+				HttpHeaders headers = new HttpHeaders();
+				ClientHttpRequest request = mock(ClientHttpRequest.class);
+				when(request.getHeaders()).thenReturn(headers);
+				((RequestCallback) invocation.getArguments()[2]).doWithRequest(request);
+				requestHeaders.add(headers);
+				ClientHttpResponse response = mock(ClientHttpResponse.class);
+				when(response.getBody()).thenReturn(new ByteArrayInputStream(streams[call].getBytes("UTF-8")));
+				return ((ResponseExtractor<?>) invocation.getArguments()[3]).extractData(response);
+			}
+		});
+	}
+
+	private EventDispatcher open(EventDispatcher dispatcher) {
+		dispatchers.add(dispatcher);
+		return dispatcher;
+	}
+
+	private void connect() {
+		connectLatch.countDown();
+	}
+
+	static abstract class LatchedListener<E extends ReceptorEvent<?>> implements EventListener<E> {
+
+		final List<E> events = new CopyOnWriteArrayList<E>();
+
+		final CountDownLatch latch;
+
+		LatchedListener(int count) {
+			this.latch = new CountDownLatch(count);
+		}
+
+		@Override
+		public void onEvent(E event) {
+			events.add(event);
+			latch.countDown();
+		}
+
+		boolean await() throws InterruptedException {
+			return latch.await(5, TimeUnit.SECONDS);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudfoundry.receptor.events.EventDispatcherTests.LatchedListener;
+import org.junit.After;
+import org.junit.Test;
+
+public class EventRingBufferTests {
+
+	private final EventListenerRegistry registry = new EventListenerRegistry();
+
+	private EventRingBuffer ringBuffer;
+
+	@After
+	public void tearDown() throws InterruptedException {
+		if (ringBuffer != null) {
+			ringBuffer.stop(1, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void testIdleConsumerReceivesLaterEvents() throws Exception {
+		LatchedListener<ActualLRPCreatedEvent> listener = new LatchedListener<ActualLRPCreatedEvent>(2) {};
+		start(4, listener);
+		ringBuffer.publish(new ActualLRPCreatedEvent(1));
+		Thread.sleep(50);
+		ringBuffer.publish(new ActualLRPCreatedEvent(2));
+
+		assertTrue(listener.await());
+		assertEquals(0, ringBuffer.getBacklog());
+	}
+
+	@Test
+	public void testConsumerIsRestartedAfterListenerError() throws Exception {
+		LatchedListener<ActualLRPCreatedEvent> listener = new LatchedListener<ActualLRPCreatedEvent>(19) {
+
+			@Override
+			public void onEvent(ActualLRPCreatedEvent event) {
+				if (event.getId() == 2) {
+					throw new AssertionError("test");
+				}
+				super.onEvent(event);
+			}
+		};
+		start(4, listener);
+		for (int id = 1; id <= 20; id++) {
+			ringBuffer.publish(new ActualLRPCreatedEvent(id));
+		}
+
+		assertTrue(listener.await());
+		assertEquals(19, listener.events.size());
+		assertEquals(1, listener.events.get(0).getId());
+		assertEquals(3, listener.events.get(1).getId());
+	}
+
+	@Test
+	public void testPublishFailsWhenInterruptedWhileRingIsFull() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		LatchedListener<ActualLRPCreatedEvent> listener = new LatchedListener<ActualLRPCreatedEvent>(3) {
+
+			@Override
+			public void onEvent(ActualLRPCreatedEvent event) {
+				try {
+					release.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.onEvent(event);
+			}
+		};
+		start(2, listener);
+		ringBuffer.publish(new ActualLRPCreatedEvent(1));
+		ringBuffer.publish(new ActualLRPCreatedEvent(2));
+		Thread.currentThread().interrupt();
+		try {
+			ringBuffer.publish(new ActualLRPCreatedEvent(3));
+			fail("expected RejectedExecutionException");
+		}
+		catch (RejectedExecutionException e) {
+			assertTrue(Thread.interrupted());
+		}
+		finally {
+			release.countDown();
+		}
+		assertEquals(1, ringBuffer.getCursor());
+	}
+
+	private void start(int bufferSize, EventListener<?> listener) {
+		registry.add(new EventListenerRegistry.Registration(listener, listener, EventListener.class, null, false));
+		ringBuffer = new EventRingBuffer(bufferSize, 1);
+		ringBuffer.start(registry);
+	}
+}
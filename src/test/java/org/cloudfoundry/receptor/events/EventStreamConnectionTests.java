@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Reads event streams from a local server that sends a heartbeat and then stalls,
+ * through the request factories of the JDK and of the HttpComponents client.
+ */
+public class EventStreamConnectionTests {
+
+	private static final String RESPONSE = "HTTP/1.1 200 OK\r\n"
+			+ "Content-Type: text/event-stream\r\n"
+			+ "Transfer-Encoding: chunked\r\n\r\n"
+			+ "4\r\n:\n\n\n\r\n";
+
+	private final BlockingQueue<Socket> connections = new LinkedBlockingQueue<Socket>();
+
+	private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+
+	private ServerSocket serverSocket;
+
+	private EventDispatcher dispatcher;
+
+	@Before
+	public void setUp() throws IOException {
+		serverSocket = new ServerSocket(0);
+		Thread acceptor = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						Socket socket = serverSocket.accept();
+						sockets.add(socket);
+						BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+								StandardCharsets.US_ASCII));
+						String line;
+						while ((line = reader.readLine()) != null && !line.isEmpty()) {
+						}
+						OutputStream outputStream = socket.getOutputStream();
+						outputStream.write(RESPONSE.getBytes(StandardCharsets.US_ASCII));
+						outputStream.flush();
+						connections.add(socket);
+					}
+				}
+				catch (IOException e) {
+					// server socket closed
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (dispatcher != null) {
+			dispatcher.close(1, TimeUnit.SECONDS);
+		}
+		serverSocket.close();
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testStalledStreamIsReconnectedWithJdkClient() throws Exception {
+		SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+		// a read of HttpURLConnection only ends once it times out
+		requestFactory.setReadTimeout(1000);
+		assertStalledStreamIsReconnected(requestFactory);
+	}
+
+	@Test
+	public void testStalledStreamIsReconnectedWithHttpComponentsClient() throws Exception {
+		assertStalledStreamIsReconnected(new HttpComponentsClientHttpRequestFactory());
+	}
+
+	@Test
+	public void testCloseAbortsStreamWithinTimeout() throws Exception {
+		dispatcher = new EventDispatcher(url(), new RestTemplate(new HttpComponentsClientHttpRequestFactory()));
+		dispatcher.addListener(new EventDispatcherTests.LatchedListener<ActualLRPCreatedEvent>(1) {});
+		Socket connection = connections.poll(5, TimeUnit.SECONDS);
+		assertTrue(connection != null);
+
+		long start = System.nanoTime();
+		assertTrue(dispatcher.close(2, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		assertTrue(isClosedByClient(connection));
+	}
+
+	@Test
+	public void testRemovingLastListenerAbortsStream() throws Exception {
+		dispatcher = new EventDispatcher(url(), new RestTemplate(new HttpComponentsClientHttpRequestFactory()));
+		EventListener<ActualLRPCreatedEvent> listener = new EventDispatcherTests.LatchedListener<ActualLRPCreatedEvent>(1) {};
+		dispatcher.addListener(listener);
+		Socket connection = connections.poll(5, TimeUnit.SECONDS);
+		assertTrue(connection != null);
+
+		assertTrue(dispatcher.removeListener(listener));
+		assertTrue(isClosedByClient(connection));
+	}
+
+	private String url() {
+		return "http://localhost:" + serverSocket.getLocalPort() + "/v1/events";
+	}
+
+	private void assertStalledStreamIsReconnected(ClientHttpRequestFactory requestFactory) throws Exception {
+		dispatcher = new EventDispatcher(url(), new RestTemplate(requestFactory));
+		dispatcher.setReconnectPolicy(new ReconnectPolicy(10, 10, 10, 1000));
+		dispatcher.setIdleTimeout(200);
+		dispatcher.addListener(new EventDispatcherTests.LatchedListener<ActualLRPCreatedEvent>(1) {});
+
+		Socket first = connections.poll(5, TimeUnit.SECONDS);
+		assertTrue(first != null);
+		assertTrue(connections.poll(5, TimeUnit.SECONDS) != null);
+		assertTrue(isClosedByClient(first));
+		assertTrue(dispatcher.getStallCount() > 0);
+	}
+
+	private static boolean isClosedByClient(Socket socket) throws IOException {
+		socket.setSoTimeout(5000);
+		try {
+			while (socket.getInputStream().read() != -1) {
+			}
+			return true;
+		}
+		catch (SocketTimeoutException e) {
+			return false;
+		}
+		catch (IOException e) {
+			// connection reset
+			return true;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class EventStreamParserTests {
+
+	@Test
+	public void testFieldsAcrossSmallReads() throws IOException {
+		String data = "{\"actual_lrp\":{\"process_guid\":\"" + new String(new char[100]).replace('\0', 'x') + "\"}}";
+		String stream = ": comment\r\nid: 42\r\nevent: actual_lrp_created\ndata:" + data + "\n\nid: x\nunknown: y\nid:43";
+		List<String> events = new ArrayList<String>();
+		new EventStreamParser(16).parse(trickle(stream), recorder(events));
+
+		assertEquals(2, events.size());
+		assertEquals("comment", events.get(0));
+		assertEquals("42 actual_lrp_created " + data, events.get(1));
+	}
+
+	@Test
+	public void testMultiLineDataAndLineTerminators() throws IOException {
+		String stream = "retry: 3000\rid: 1\revent: desired_lrp_created\rdata: {\"desired_lrp\":\r\ndata:  {}}\r\r\n"
+				+ "id: 2\nevent: desired_lrp_removed\ndata\n\n"
+				+ "event: no_data\n\n"
+				+ "id: 3\nevent: desired_lrp_changed\ndata: {}\n";
+		List<String> events = new ArrayList<String>();
+		new EventStreamParser(16).parse(trickle(stream), recorder(events));
+
+		assertEquals(3, events.size());
+		assertEquals("retry=3000", events.get(0));
+		assertEquals("1 desired_lrp_created {\"desired_lrp\":\n {}}", events.get(1));
+		assertEquals("2 desired_lrp_removed ", events.get(2));
+	}
+
+	@Test
+	public void testOversizedEventIsDiscarded() throws IOException {
+		String large = new String(new char[100]).replace('\0', 'x');
+		String stream = "id: 1\nevent: a\ndata: " + large + "\n\n"
+				+ "id: 2\nevent: b\ndata: " + large.substring(0, 40) + "\ndata: " + large.substring(0, 40) + "\n\n"
+				+ "id: 3\nevent: c\ndata: small\n\n";
+		List<String> events = new ArrayList<String>();
+		new EventStreamParser(16, 64).parse(trickle(stream), recorder(events));
+
+		assertEquals(1, events.size());
+		assertEquals("3 c small", events.get(0));
+	}
+
+	private static InputStream trickle(String stream) {
+		return new FilterInputStream(new ByteArrayInputStream(stream.getBytes(StandardCharsets.UTF_8))) {
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, 7));
+			}
+		};
+	}
+
+	private static EventStreamParser.EventHandler recorder(final List<String> events) {
+		return new EventStreamParser.EventHandler() {
+
+			@Override
+			public void onEvent(int id, byte[] type, int typeLength, byte[] data, int dataLength) {
+				events.add(id + " " + new String(type, 0, typeLength, StandardCharsets.UTF_8) + " "
+						+ new String(data, 0, dataLength, StandardCharsets.UTF_8));
+			}
+
+			@Override
+			public void onRetry(long retry) {
+				events.add("retry=" + retry);
+			}
+
+			@Override
+			public void onComment() {
+				events.add("comment");
+			}
+		};
+	}
+}
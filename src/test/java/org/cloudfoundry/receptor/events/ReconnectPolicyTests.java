@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.receptor.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ReconnectPolicyTests {
+
+	@Test
+	public void testDelayIsBoundedByBackoffAndMaxDelay() {
+		ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 100, 5000);
+		for (int failures = 0; failures < 20; failures++) {
+			long ceiling = Math.min(1000, 100L << Math.min(failures, 10));
+			for (int i = 0; i < 50; i++) {
+				long delay = policy.nextDelay();
+				assertTrue(delay >= 0 && delay <= ceiling);
+			}
+			policy.onFailure();
+		}
+	}
+
+	@Test
+	public void testBreakerOpensAndHalfOpens() {
+		ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 3, 5000);
+		policy.onFailure();
+		policy.onFailure();
+		assertEquals(ReconnectPolicy.State.CLOSED, policy.getState());
+		policy.onFailure();
+		assertEquals(ReconnectPolicy.State.OPEN, policy.getState());
+		assertTrue(policy.nextDelay() >= 5000);
+
+		policy.beforeAttempt();
+		assertEquals(ReconnectPolicy.State.HALF_OPEN, policy.getState());
+		policy.onFailure();
+		assertEquals(ReconnectPolicy.State.OPEN, policy.getState());
+
+		policy.beforeAttempt();
+		policy.onSuccess();
+		assertEquals(ReconnectPolicy.State.CLOSED, policy.getState());
+		assertEquals(0, policy.getConsecutiveFailures());
+		assertTrue(policy.nextDelay() <= 100);
+	}
+}